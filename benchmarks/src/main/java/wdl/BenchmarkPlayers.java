@@ -0,0 +1,74 @@
+package wdl;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.UUID;
+
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+
+/**
+ * Creates stand-in {@link Player}s for benchmarks, since there is no server.
+ * Only the methods that the benchmarked code uses are implemented; the rest
+ * throw {@link UnsupportedOperationException}.
+ */
+final class BenchmarkPlayers {
+	private BenchmarkPlayers() { }
+
+	/**
+	 * Creates a player with the given name, in a world with the given name,
+	 * without any permissions.
+	 */
+	public static Player create(final String name, final String worldName) {
+		final UUID uuid = UUID.nameUUIDFromBytes(name.getBytes());
+		final World world = (World) Proxy.newProxyInstance(
+				World.class.getClassLoader(), new Class<?>[] { World.class },
+				new Handler("World " + worldName) {
+					@Override
+					protected Object invoke(String method) {
+						if (method.equals("getName")) {
+							return worldName;
+						}
+						return super.invoke(method);
+					}
+				});
+		return (Player) Proxy.newProxyInstance(
+				Player.class.getClassLoader(), new Class<?>[] { Player.class },
+				new Handler("Player " + name) {
+					@Override
+					protected Object invoke(String method) {
+						switch (method) {
+						case "getName": return name;
+						case "getUniqueId": return uuid;
+						case "getWorld": return world;
+						case "hasPermission": return false;
+						default: return super.invoke(method);
+						}
+					}
+				});
+	}
+
+	private static class Handler implements InvocationHandler {
+		private final String description;
+
+		public Handler(String description) {
+			this.description = description;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			switch (method.getName()) {
+			case "toString": return description;
+			case "hashCode": return System.identityHashCode(proxy);
+			case "equals": return proxy == args[0];
+			default: return invoke(method.getName());
+			}
+		}
+
+		protected Object invoke(String method) {
+			throw new UnsupportedOperationException(description
+					+ " does not implement " + method);
+		}
+	}
+}
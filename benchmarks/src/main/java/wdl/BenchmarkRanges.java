@@ -0,0 +1,84 @@
+package wdl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import wdl.range.ProtectionRange;
+
+/**
+ * Generates the range inputs used by the benchmarks.  A fixed seed is used so
+ * that every run measures the same data.
+ */
+enum BenchmarkRanges {
+	/**
+	 * What a claim plugin sends: single-chunk ranges filling a few hundred
+	 * rectangular claims, in no particular order.
+	 */
+	DENSE_CLAIMS {
+		@Override
+		public List<ProtectionRange> create(int size) {
+			Random random = new Random(0);
+			List<ProtectionRange> ranges = new ArrayList<>(size);
+			while (ranges.size() < size) {
+				int width = 4 + random.nextInt(28);
+				int depth = 4 + random.nextInt(28);
+				int startX = random.nextInt(4000) - 2000;
+				int startZ = random.nextInt(4000) - 2000;
+				for (int x = startX; x < startX + width && ranges.size() < size; x++) {
+					for (int z = startZ; z < startZ + depth && ranges.size() < size; z++) {
+						ranges.add(new ProtectionRange("", x, z, x, z));
+					}
+				}
+			}
+			Collections.shuffle(ranges, random);
+			return ranges;
+		}
+	},
+	/**
+	 * Single-chunk ranges scattered over a large area, which can barely be
+	 * merged.
+	 */
+	SPARSE_CHUNKS {
+		@Override
+		public List<ProtectionRange> create(int size) {
+			Random random = new Random(0);
+			List<ProtectionRange> ranges = new ArrayList<>(size);
+			for (int i = 0; i < size; i++) {
+				int x = random.nextInt(20000) - 10000;
+				int z = random.nextInt(20000) - 10000;
+				ranges.add(new ProtectionRange("", x, z, x, z));
+			}
+			return ranges;
+		}
+	},
+	/**
+	 * Dense, overlapping ranges of mixed sizes, split over a hundred tags (EG
+	 * one per claim owner).
+	 */
+	MANY_TAGS {
+		@Override
+		public List<ProtectionRange> create(int size) {
+			Random random = new Random(0);
+			List<ProtectionRange> ranges = new ArrayList<>(size);
+			for (int i = 0; i < size; i++) {
+				String tag = "owner" + random.nextInt(100);
+				int x = random.nextInt(500);
+				int z = random.nextInt(500);
+				if (random.nextInt(4) == 0) {
+					ranges.add(new ProtectionRange(tag, x, z,
+							x + random.nextInt(16), z + random.nextInt(16)));
+				} else {
+					ranges.add(new ProtectionRange(tag, x, z, x, z));
+				}
+			}
+			return ranges;
+		}
+	};
+
+	/**
+	 * Creates the given number of ranges.
+	 */
+	public abstract List<ProtectionRange> create(int size);
+}
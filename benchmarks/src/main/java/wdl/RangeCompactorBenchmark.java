@@ -0,0 +1,55 @@
+package wdl;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import wdl.range.ProtectionRange;
+
+/**
+ * Benchmarks the compaction done by {@link RangeCompactor#compact(List)}
+ * for each {@link RangeCompactor.Mode}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RangeCompactorBenchmark {
+	// These are strings since the generated code can't use the
+	// package-private enums.
+	@Param({ "DENSE_CLAIMS", "SPARSE_CHUNKS", "MANY_TAGS" })
+	public String input;
+	@Param({ "1000", "50000" })
+	public int size;
+	@Param({ "STRIPS", "RECTANGLES" })
+	public String mode;
+
+	private List<ProtectionRange> ranges;
+	private RangeCompactor compactor;
+
+	@Setup
+	public void setup() {
+		ranges = BenchmarkRanges.valueOf(input).create(size);
+		// A budget of an hour, so that the rectangles mode is always measured
+		compactor = new RangeCompactor(RangeCompactor.Mode.valueOf(mode),
+				TimeUnit.HOURS.toMillis(1));
+	}
+
+	@Benchmark
+	public List<ProtectionRange> compact() {
+		return compactor.compact(ranges);
+	}
+}
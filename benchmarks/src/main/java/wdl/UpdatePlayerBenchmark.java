@@ -0,0 +1,143 @@
+package wdl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.entity.Player;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import wdl.range.ProtectionRange;
+
+/**
+ * Benchmarks the work done by {@link WDLCompanion#updatePlayer(Player)} for a
+ * single player: getting (or creating) the permission packets with
+ * {@link PermissionPacketCache#getPackets}, and building the range packets
+ * with {@link PacketBuilder#build}.
+ * <br/>
+ * The plugin itself can't be created without a server, so the player's
+ * permissions are given directly instead of being resolved, and the ranges
+ * are given instead of coming from range producers.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UpdatePlayerBenchmark {
+	/**
+	 * Number of ranges the player has.
+	 */
+	@Param({ "100", "10000" })
+	public int rangeCount;
+
+	private Player player;
+	private ResolvedPermissions permissions;
+	private byte[] entityRangesPacket;
+	private PermissionPacketCache cache;
+	private Map<String, List<ProtectionRange>> ranges;
+	private Map<String, List<ProtectionRange>> changedRanges;
+	private RangeSyncState syncedState;
+
+	@Setup
+	public void setup() {
+		player = BenchmarkPlayers.create("Player", "world");
+		permissions = new ResolvedPermissions(player.getWorld(), 0, true, -1,
+				true, true, true, true, true, true);
+		Map<String, Integer> entityRanges = new HashMap<>();
+		for (int i = 0; i < 60; i++) {
+			entityRanges.put("Entity" + i, 64 + i);
+		}
+		entityRangesPacket = WDLPackets.createWDLPacket2(entityRanges);
+
+		cache = new PermissionPacketCache();
+		getPermissionPackets(cache);
+
+		List<ProtectionRange> claims = BenchmarkRanges.MANY_TAGS.create(rangeCount);
+		ranges = new HashMap<>();
+		ranges.put("claims", claims);
+		ranges.put("requests", new ArrayList<ProtectionRange>());
+
+		// The same ranges, except for one tag
+		List<ProtectionRange> changedClaims = new ArrayList<>();
+		for (ProtectionRange range : claims) {
+			if (!range.tag.equals("owner0")) {
+				changedClaims.add(range);
+			}
+		}
+		changedClaims.add(new ProtectionRange("owner0", 0, 0, 10, 10));
+		changedRanges = new HashMap<>();
+		changedRanges.put("claims", changedClaims);
+		changedRanges.put("requests", new ArrayList<ProtectionRange>());
+
+		syncedState = new RangeSyncState();
+		buildRangePackets(syncedState, ranges);
+	}
+
+	/**
+	 * The permission packets for a player whose permissions were already
+	 * cached.
+	 */
+	@Benchmark
+	public byte[][] permissionPacketsCached() {
+		return getPermissionPackets(cache);
+	}
+
+	/**
+	 * The permission packets for a player whose permissions were not cached.
+	 */
+	@Benchmark
+	public byte[][] permissionPacketsUncached() {
+		return getPermissionPackets(new PermissionPacketCache());
+	}
+
+	/**
+	 * The range packets for a player that just joined.
+	 */
+	@Benchmark
+	public List<byte[]> rangesInitial() {
+		return buildRangePackets(new RangeSyncState(), ranges);
+	}
+
+	/**
+	 * The range packets for a player whose ranges did not change.
+	 */
+	@Benchmark
+	public List<byte[]> rangesUnchanged() {
+		return buildRangePackets(syncedState, ranges);
+	}
+
+	/**
+	 * The range packets for a player where only one tag changed.  The
+	 * state alternates between the two sets of ranges.
+	 */
+	@Benchmark
+	public List<byte[]> rangesOneTagChanged() {
+		buildRangePackets(syncedState, changedRanges);
+		return buildRangePackets(syncedState, ranges);
+	}
+
+	private byte[][] getPermissionPackets(PermissionPacketCache cache) {
+		return cache.getPackets(permissions, "world", entityRangesPacket, "");
+	}
+
+	private List<byte[]> buildRangePackets(RangeSyncState syncState,
+			Map<String, List<ProtectionRange>> ranges) {
+		return PacketBuilder.build(new PacketBuilder.Snapshot(player,
+				WDLCompanion.CONTROL_CHANNEL_NAME_113, syncState, null,
+				ranges, null, null));
+	}
+}
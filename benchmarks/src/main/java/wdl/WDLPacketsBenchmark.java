@@ -0,0 +1,138 @@
+package wdl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.entity.Player;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import wdl.range.ProtectionRange;
+import wdl.request.PermissionRequest;
+
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
+
+/**
+ * Benchmarks creating each of the packets in {@link WDLPackets}, and reading
+ * a permission request.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WDLPacketsBenchmark {
+	/**
+	 * Number of ranges in each range packet.
+	 */
+	@Param({ "10", "1000" })
+	public int rangeCount;
+
+	private Map<String, Integer> entityRanges;
+	private String requestMessage;
+	private Map<String, List<ProtectionRange>> groups;
+	private List<ProtectionRange> ranges;
+	private List<String> tags;
+	private Player player;
+	private byte[] permissionRequest;
+
+	@Setup
+	public void setup() {
+		entityRanges = new HashMap<>();
+		for (int i = 0; i < 60; i++) {
+			entityRanges.put("Entity" + i, 64 + i);
+		}
+		requestMessage = "Please explain why you want to download the world. "
+				+ "Requests without a reason will be rejected.";
+
+		ranges = BenchmarkRanges.MANY_TAGS.create(rangeCount);
+		groups = new LinkedHashMap<>();
+		groups.put("claims", ranges);
+		groups.put("requests", ranges.subList(0, rangeCount / 10));
+		tags = new ArrayList<>();
+		for (int i = 0; i < rangeCount / 10; i++) {
+			tags.add("owner" + i);
+		}
+
+		player = BenchmarkPlayers.create("Player", "world");
+
+		ByteArrayDataOutput output = ByteStreams.newDataOutput();
+		output.writeUTF("I want to download my base");
+		output.writeInt(3);
+		output.writeUTF("downloadInGeneral");
+		output.writeUTF("true");
+		output.writeUTF("cacheChunks");
+		output.writeUTF("true");
+		output.writeUTF("saveEntities");
+		output.writeUTF("false");
+		output.writeInt(rangeCount);
+		for (ProtectionRange range : ranges) {
+			output.writeUTF(range.tag);
+			output.writeInt(range.x1);
+			output.writeInt(range.z1);
+			output.writeInt(range.x2);
+			output.writeInt(range.z2);
+		}
+		permissionRequest = output.toByteArray();
+	}
+
+	@Benchmark
+	public byte[] packet0() {
+		return WDLPackets.createWDLPacket0(true);
+	}
+
+	@Benchmark
+	public byte[] packet1() {
+		return WDLPackets.createWDLPacket1(true, -1, true, true, true, true);
+	}
+
+	@Benchmark
+	public byte[] packet2() {
+		return WDLPackets.createWDLPacket2(entityRanges);
+	}
+
+	@Benchmark
+	public byte[] packet3() {
+		return WDLPackets.createWDLPacket3(requestMessage);
+	}
+
+	@Benchmark
+	public byte[] packet4() {
+		return WDLPackets.createWDLPacket4(groups);
+	}
+
+	@Benchmark
+	public byte[] packet5() {
+		return WDLPackets.createWDLPacket5("claims", true, ranges);
+	}
+
+	@Benchmark
+	public byte[] packet6() {
+		return WDLPackets.createWDLPacket6("claims", tags);
+	}
+
+	@Benchmark
+	public byte[] packet7() {
+		return WDLPackets.createWDLPacket7("claims", "owner0", ranges);
+	}
+
+	@Benchmark
+	public PermissionRequest readPermissionRequest() {
+		return WDLPackets.readPermissionRequest(player, permissionRequest);
+	}
+}
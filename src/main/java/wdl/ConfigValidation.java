@@ -29,7 +29,11 @@ public class ConfigValidation {
 			"canCacheChunks", "canSaveEntities", "canSaveTileEntities", 
 			"canSaveContainers", "sendEntityRanges", "requestMessage",
 			//Main-config specific
-			"logMode", "requestDuration", "per-world", "chunkOverrides");
+			"logMode", "requestDuration", "per-world", "chunkOverrides",
+			"rangeCompactionMode", "rangeCompactionTimeBudget",
+			"rangeStreamingRadius", "watchConfigFiles", "maxRequestRanges",
+			"maxPacketBytesPerTick", "maxPacketsPerTick",
+			"playersUpdatedPerTick", "packetBuilderThreads");
 	
 	/**
 	 * Validates the entire configuration.
@@ -92,6 +96,39 @@ public class ConfigValidation {
 			}
 		}
 		
+		validateIsStringOrUnset("rangeCompactionMode", section, warnTo);
+		if (section.isString("rangeCompactionMode")) {
+			String mode = section.getString("rangeCompactionMode");
+			
+			if (!(mode.equalsIgnoreCase("none")
+					|| mode.equalsIgnoreCase("strips") 
+					|| mode.equalsIgnoreCase("rectangles"))) {
+				warnTo.sendMessage("c[WDL] ERROR: Config setting "
+						+ "'wdl.rangeCompactionMode' is not one of the valid "
+						+ "options!  'strips' will be used instead!");
+				warnTo.sendMessage("c[WDL] Must be 'none', 'strips', or " +
+						"'rectangles'!");
+			}
+		}
+		validateIsIntOrUnset("rangeCompactionTimeBudget", section, warnTo);
+		if (section.getInt("rangeCompactionTimeBudget", 5) < 0) {
+			warnTo.sendMessage("c[WDL] ERROR: Config setting wdl.range" +
+					"CompactionTimeBudget is not valid!  It must not be " +
+					"negative.  0 milliseconds will be used instead!");
+		}
+		validateIsIntOrUnset("rangeStreamingRadius", section, warnTo);
+		validateIsBoolOrUnset("watchConfigFiles", section, warnTo);
+		validateIsIntOrUnset("maxRequestRanges", section, warnTo);
+		validateIsIntOrUnset("maxPacketBytesPerTick", section, warnTo);
+		validateIsIntOrUnset("maxPacketsPerTick", section, warnTo);
+		validateIsIntOrUnset("playersUpdatedPerTick", section, warnTo);
+		if (section.getInt("playersUpdatedPerTick", 10) == 0) {
+			warnTo.sendMessage("c[WDL] ERROR: Config setting wdl.players" +
+					"UpdatedPerTick is not valid!  It must not be 0.  1 " +
+					"player per tick will be used instead!");
+		}
+		validateIsIntOrUnset("packetBuilderThreads", section, warnTo);
+		
 		// Check for the per-world options.
 		if (section.isSet("per-world")) {
 			if (!section.isConfigurationSection("per-world")) {
@@ -311,7 +348,7 @@ public class ConfigValidation {
 		String fullKey = (config.getCurrentPath().isEmpty() ? key : config
 				.getCurrentPath() + "." + key);
 		
-		if (config.isSet(key) && !config.isBoolean(key)) {
+		if (config.isSet(key) && !config.isInt(key)) {
 			warnTo.sendMessage("c[WDL] ERROR: Config setting " + 
 					fullKey + " is not an integer!  The default value of " +
 					config.getInt(key) + " will be used instead!");
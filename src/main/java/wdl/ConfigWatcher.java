@@ -0,0 +1,211 @@
+package wdl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import org.bukkit.configuration.Configuration;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+/**
+ * Watches the plugin's config.yml and spigot.yml, so that changes to them are
+ * applied without needing <code>/wdl reload</code>.  Only used if
+ * <code>wdl.watchConfigFiles</code> is true.
+ * <br/>
+ * Changes are noticed on a background thread, which waits until neither file
+ * has changed for {@link #DEBOUNCE_MILLIS} (editors often write a file more
+ * than once when saving it) and then parses the changed files.  Only the
+ * parsed result is handed to the main thread, where
+ * {@link WDLCompanion#applyChangedConfig} and
+ * {@link WDLCompanion#applyChangedEntityTrackingRanges} compare it with the
+ * active settings and apply only what changed.
+ */
+final class ConfigWatcher implements Runnable {
+	/**
+	 * How long the files must be left alone before they are reloaded.
+	 */
+	private static final long DEBOUNCE_MILLIS = 1000;
+
+	private final WDLCompanion plugin;
+	private final Path configFile;
+	private final Path spigotFile;
+	/**
+	 * The defaults for config.yml, from the plugin jar.
+	 */
+	private final Configuration defaults;
+	private final WatchService watchService;
+	/**
+	 * The directory that each registered key is watching.
+	 */
+	private final Map<WatchKey, Path> directories = new HashMap<>();
+	private final Thread thread;
+	private volatile boolean stopped = false;
+
+	private ConfigWatcher(WDLCompanion plugin, File configFile,
+			File spigotFile, Configuration defaults) throws IOException {
+		this.plugin = plugin;
+		this.configFile = configFile.toPath().toAbsolutePath().normalize();
+		this.spigotFile = spigotFile.toPath().toAbsolutePath().normalize();
+		this.defaults = defaults;
+
+		this.watchService = FileSystems.getDefault().newWatchService();
+		try {
+			register(this.configFile.getParent());
+			if (!directories.containsValue(this.spigotFile.getParent())) {
+				register(this.spigotFile.getParent());
+			}
+		} catch (IOException e) {
+			watchService.close();
+			throw e;
+		}
+
+		this.thread = new Thread(this, "WDL config watcher");
+		this.thread.setDaemon(true);
+	}
+
+	/**
+	 * Starts watching the given files.
+	 *
+	 * @param plugin
+	 *            The plugin instance, which changes are applied to.
+	 * @param configFile
+	 *            The plugin's config.yml.
+	 * @param spigotFile
+	 *            The server's spigot.yml.  Its directory must exist, but the
+	 *            file itself doesn't need to.
+	 * @param defaults
+	 *            The default values for config.yml.
+	 * @throws IOException
+	 *             If the directories can't be watched.
+	 */
+	public static ConfigWatcher start(WDLCompanion plugin, File configFile,
+			File spigotFile, Configuration defaults) throws IOException {
+		ConfigWatcher watcher = new ConfigWatcher(plugin, configFile,
+				spigotFile, defaults);
+		watcher.thread.start();
+		return watcher;
+	}
+
+	/**
+	 * Stops watching the files.  Changes that have already been parsed but
+	 * not yet applied are dropped.
+	 */
+	public void stop() {
+		stopped = true;
+		try {
+			watchService.close();
+		} catch (IOException e) {
+			plugin.getLogger().log(Level.WARNING,
+					"Failed to close the config watch service", e);
+		}
+	}
+
+	private void register(Path directory) throws IOException {
+		WatchKey key = directory.register(watchService,
+				StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_MODIFY);
+		directories.put(key, directory);
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (!stopped) {
+				Set<Path> changed = new HashSet<>();
+				WatchKey key = watchService.take();
+				do {
+					collectChanges(key, changed);
+					key = watchService.poll(DEBOUNCE_MILLIS,
+							TimeUnit.MILLISECONDS);
+				} while (key != null);
+
+				if (changed.contains(configFile)) {
+					reloadConfig();
+				}
+				if (changed.contains(spigotFile)) {
+					reloadSpigotConfig();
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			// Stopped
+		}
+	}
+
+	/**
+	 * Adds the files that the events on the given key are for to the set.
+	 */
+	private void collectChanges(WatchKey key, Set<Path> changed) {
+		Path directory = directories.get(key);
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				// Some events were lost; assume both files changed.
+				changed.add(configFile);
+				changed.add(spigotFile);
+			} else {
+				changed.add(directory.resolve((Path) event.context()));
+			}
+		}
+		key.reset();
+	}
+
+	private void reloadConfig() {
+		final YamlConfiguration config = new YamlConfiguration();
+		try {
+			config.load(configFile.toFile());
+		} catch (IOException | InvalidConfigurationException e) {
+			plugin.getLogger().log(Level.WARNING, "config.yml was changed, "
+					+ "but it could not be loaded; the old config will still "
+					+ "be used.", e);
+			return;
+		}
+		config.setDefaults(defaults);
+
+		runOnMainThread(new Runnable() {
+			@Override
+			public void run() {
+				plugin.applyChangedConfig(config);
+			}
+		});
+	}
+
+	private void reloadSpigotConfig() {
+		final EntityTrackingRanges ranges = EntityTrackingRanges.load(
+				spigotFile.toFile(), plugin.getLogger());
+
+		runOnMainThread(new Runnable() {
+			@Override
+			public void run() {
+				plugin.applyChangedEntityTrackingRanges(ranges);
+			}
+		});
+	}
+
+	private void runOnMainThread(final Runnable runnable) {
+		if (stopped) {
+			return;
+		}
+		plugin.getServer().getScheduler().runTask(plugin, new Runnable() {
+			@Override
+			public void run() {
+				// Don't apply anything if this was stopped in the meantime,
+				// EG because watching was turned off.
+				if (!stopped) {
+					runnable.run();
+				}
+			}
+		});
+	}
+}
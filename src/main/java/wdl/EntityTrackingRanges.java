@@ -0,0 +1,192 @@
+package wdl;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.entity.Ambient;
+import org.bukkit.entity.Creature;
+import org.bukkit.entity.EntityType;
+import org.bukkit.entity.ExperienceOrb;
+import org.bukkit.entity.Item;
+import org.bukkit.entity.ItemFrame;
+import org.bukkit.entity.Monster;
+import org.bukkit.entity.Painting;
+import org.bukkit.entity.Slime;
+
+/**
+ * The entity tracking ranges from spigot's settings.  Both the category of
+ * each entity type and <code>spigot.yml</code> are only read once, when this
+ * is loaded; getting the ranges for a world only uses those tables.
+ */
+final class EntityTrackingRanges {
+	/**
+	 * The categories of entities that spigot uses for tracking ranges.
+	 */
+	private static enum Category {
+		ANIMALS("animals"),
+		MONSTERS("monsters"),
+		MISC("misc"),
+		OTHER("other");
+
+		/**
+		 * The key in spigot.yml, under "entity-tracking-range".
+		 */
+		public final String key;
+
+		private Category(String key) {
+			this.key = key;
+		}
+	}
+
+	/**
+	 * Names of all entity types, along with the matching values in
+	 * {@link #categories}.
+	 */
+	private final String[] names;
+	private final Category[] categories;
+	/**
+	 * The default tracking range for each category, indexed by ordinal.
+	 * <code>null</code> if the ranges are unknown (EG not running spigot).
+	 */
+	private final int[] defaultRanges;
+	/**
+	 * The tracking ranges for each world in spigot.yml, indexed by ordinal.
+	 * Worlds not in this map use {@link #defaultRanges}.
+	 */
+	private final Map<String, int[]> worldRanges;
+
+	private EntityTrackingRanges(int[] defaultRanges,
+			Map<String, int[]> worldRanges) {
+		List<String> names = new ArrayList<>();
+		List<Category> categories = new ArrayList<>();
+		for (EntityType type : EntityType.values()) {
+			@SuppressWarnings("deprecation")
+			String name = type.getName();
+			if (name == null) {
+				continue;
+			}
+			names.add(name);
+			categories.add(getCategory(type.getEntityClass()));
+		}
+
+		this.names = names.toArray(new String[names.size()]);
+		this.categories = categories.toArray(new Category[categories.size()]);
+		this.defaultRanges = defaultRanges;
+		this.worldRanges = worldRanges;
+	}
+
+	/**
+	 * Loads the tracking ranges from the given spigot.yml.  If it doesn't
+	 * exist or can't be read, a warning is logged and no ranges are used.
+	 */
+	public static EntityTrackingRanges load(File spigotConfig, Logger logger) {
+		if (!spigotConfig.exists()) {
+			logger.warning("Failed to find entity ranges: spigot.yml does not exist.");
+			logger.warning("If you're not running spigot, this doesn't matter.");
+			return new EntityTrackingRanges(null,
+					Collections.<String, int[]> emptyMap());
+		}
+
+		try {
+			YamlConfiguration config = YamlConfiguration
+					.loadConfiguration(spigotConfig);
+
+			ConfigurationSection defaults = config
+					.getConfigurationSection("world-settings.default");
+			if (defaults == null) {
+				logger.warning("Failed to find entity ranges: spigot.yml "
+						+ "does not have world-settings.default.");
+				return new EntityTrackingRanges(null,
+						Collections.<String, int[]> emptyMap());
+			}
+
+			int[] defaultRanges = new int[Category.values().length];
+			for (Category category : Category.values()) {
+				defaultRanges[category.ordinal()] = defaults
+						.getInt("entity-tracking-range." + category.key);
+			}
+
+			Map<String, int[]> worldRanges = new HashMap<>();
+			ConfigurationSection worlds = config
+					.getConfigurationSection("world-settings");
+			for (String worldName : worlds.getKeys(false)) {
+				ConfigurationSection world = worlds
+						.getConfigurationSection(worldName);
+				if (worldName.equals("default") || world == null) {
+					continue;
+				}
+
+				int[] ranges = defaultRanges.clone();
+				for (Category category : Category.values()) {
+					String key = "entity-tracking-range." + category.key;
+					if (world.isInt(key)) {
+						ranges[category.ordinal()] = world.getInt(key);
+					}
+				}
+				worldRanges.put(worldName, ranges);
+			}
+
+			return new EntityTrackingRanges(defaultRanges, worldRanges);
+		} catch (Exception e) {
+			logger.log(Level.WARNING, "Failed to read entity ranges from "
+					+ "spigot.yml.", e);
+			return new EntityTrackingRanges(null,
+					Collections.<String, int[]> emptyMap());
+		}
+	}
+
+	/**
+	 * Gets the tracking range of each entity type in the given world.
+	 *
+	 * @return A map from entity savegame names to tracking ranges, which is
+	 *         empty if the ranges are unknown.
+	 */
+	public Map<String, Integer> getRanges(String worldName) {
+		if (defaultRanges == null) {
+			return Collections.emptyMap();
+		}
+		int[] ranges = worldRanges.get(worldName);
+		if (ranges == null) {
+			ranges = defaultRanges;
+		}
+
+		Map<String, Integer> result = new HashMap<>();
+		for (int i = 0; i < names.length; i++) {
+			result.put(names[i], ranges[categories[i].ordinal()]);
+		}
+		result.put("Hologram", ranges[Category.OTHER.ordinal()]);
+		return Collections.unmodifiableMap(result);
+	}
+
+	/**
+	 * Gets the category of the given entity class.  Based off of spigot's
+	 * TrackingRange and ActivationRange.
+	 */
+	private static Category getCategory(Class<?> entityClass) {
+		if (entityClass == null) {
+			return Category.OTHER;
+		}
+		if (Monster.class.isAssignableFrom(entityClass) ||
+				Slime.class.isAssignableFrom(entityClass)) {
+			return Category.MONSTERS;
+		} else if (Creature.class.isAssignableFrom(entityClass) ||
+				Ambient.class.isAssignableFrom(entityClass)) {
+			return Category.ANIMALS;
+		} else if (ItemFrame.class.isAssignableFrom(entityClass) ||
+				Painting.class.isAssignableFrom(entityClass) ||
+				Item.class.isAssignableFrom(entityClass) ||
+				ExperienceOrb.class.isAssignableFrom(entityClass)) {
+			return Category.MISC;
+		} else {
+			return Category.OTHER;
+		}
+	}
+}
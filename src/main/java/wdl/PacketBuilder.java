@@ -0,0 +1,292 @@
+package wdl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import org.bukkit.entity.Player;
+
+import wdl.range.ProtectionRange;
+
+/**
+ * Builds the range packets for updating players on a small pool of worker
+ * threads, so that comparing a player's ranges with the ones their client
+ * has and encoding the changes doesn't happen on the main thread.
+ * <br/>
+ * The main thread only gathers a {@link Snapshot} of what the player should
+ * have (the settings packets, which are cached, and the lists of ranges from
+ * each producer).  Finished packets are handed back to the main thread and
+ * queued with the {@link PacketFlusher} at the start of the next tick.
+ * <br/>
+ * A player's {@link RangeSyncState} must only change in the order that
+ * packets are sent, so only one build runs for each player at a time.  While
+ * it runs, the player's queued range operations are held back by the
+ * flusher, and further updates for the player are combined into a single
+ * full update that is started once it finishes.
+ */
+final class PacketBuilder {
+	/**
+	 * The most builds that can wait for a worker; past this, builds happen on
+	 * the main thread instead.
+	 */
+	private static final int MAX_WAITING_BUILDS = 1024;
+
+	private final WDLCompanion plugin;
+	private final PacketFlusher flusher;
+	/**
+	 * The worker threads, or null if packets are built on the main thread.
+	 */
+	private ThreadPoolExecutor executor;
+	private int threads = 0;
+	/**
+	 * Finished builds, waiting to be handed to the main thread.
+	 */
+	private final Queue<Build> finished = new ConcurrentLinkedQueue<>();
+	/**
+	 * Players with a build in progress.  Only used on the main thread.
+	 */
+	private final Map<UUID, Build> building = new HashMap<>();
+
+	/**
+	 * Everything needed to build a player's packets, captured on the main
+	 * thread.  Nothing in it may be changed after it is created.
+	 */
+	static final class Snapshot {
+		/**
+		 * Creates a new snapshot.
+		 *
+		 * @param player
+		 *            The player to update.
+		 * @param channel
+		 *            The channel to send the packets on.
+		 * @param syncState
+		 *            The ranges the player's client has.
+		 * @param settingsPackets
+		 *            Packets #0 to #3 to send first, or null to only send
+		 *            ranges.
+		 * @param ranges
+		 *            The ranges that the player should have, by group.
+		 * @param groupNames
+		 *            The groups to update, or null to update all of them.
+		 * @param area
+		 *            The area to send ranges in, or null to send all of them.
+		 */
+		public Snapshot(Player player, String channel,
+				RangeSyncState syncState, byte[][] settingsPackets,
+				Map<String, List<ProtectionRange>> ranges,
+				Collection<String> groupNames, StreamingArea area) {
+			this.player = player;
+			this.channel = channel;
+			this.syncState = syncState;
+			this.settingsPackets = settingsPackets;
+			this.ranges = ranges;
+			this.groupNames = groupNames;
+			this.area = area;
+		}
+
+		public final Player player;
+		public final String channel;
+		public final RangeSyncState syncState;
+		public final byte[][] settingsPackets;
+		public final Map<String, List<ProtectionRange>> ranges;
+		public final Collection<String> groupNames;
+		public final StreamingArea area;
+	}
+
+	/**
+	 * A build for a single player.
+	 */
+	private static final class Build implements Runnable {
+		public Build(Snapshot snapshot, Queue<Build> finished) {
+			this.snapshot = snapshot;
+			this.finished = finished;
+		}
+
+		public final Snapshot snapshot;
+		private final Queue<Build> finished;
+		/**
+		 * The built packets, or null if building failed.
+		 */
+		public volatile List<byte[]> packets;
+		public volatile Throwable failure;
+		/**
+		 * The player to update again once this build finishes, because they
+		 * needed another update while it was running.  Only used on the main
+		 * thread.
+		 */
+		public Player updateAgain;
+
+		@Override
+		public void run() {
+			try {
+				packets = build(snapshot);
+			} catch (Throwable t) {
+				failure = t;
+			}
+			finished.add(this);
+		}
+	}
+
+	PacketBuilder(WDLCompanion plugin, PacketFlusher flusher) {
+		this.plugin = plugin;
+		this.flusher = flusher;
+	}
+
+	/**
+	 * Sets the number of worker threads.  If it is changed, builds that were
+	 * already started on the old threads still finish.
+	 *
+	 * @param threads
+	 *            The number of threads, or 0 to build packets on the main
+	 *            thread.
+	 */
+	public void setThreads(int threads) {
+		threads = Math.max(threads, 0);
+		if (threads == this.threads) {
+			return;
+		}
+		if (executor != null) {
+			executor.shutdown();
+			executor = null;
+		}
+		this.threads = threads;
+		if (threads > 0) {
+			final AtomicInteger count = new AtomicInteger();
+			executor = new ThreadPoolExecutor(threads, threads, 0,
+					TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+							MAX_WAITING_BUILDS), new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable runnable) {
+							Thread thread = new Thread(runnable,
+									"WDL packet builder " + count.incrementAndGet());
+							thread.setDaemon(true);
+							return thread;
+						}
+					}, new ThreadPoolExecutor.CallerRunsPolicy());
+		}
+	}
+
+	/**
+	 * Stops the worker threads, and discards builds that haven't finished.
+	 */
+	public void stop() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+		threads = 0;
+		building.clear();
+		finished.clear();
+	}
+
+	/**
+	 * Forgets the build in progress for the given player, for instance
+	 * because they left, so that its packets aren't sent.  Must be called on
+	 * the main thread.
+	 */
+	public void discard(UUID playerId) {
+		building.remove(playerId);
+	}
+
+	/**
+	 * Is a build in progress for the given player?  Must be called on the
+	 * main thread.
+	 */
+	public boolean isBuilding(UUID playerId) {
+		return building.containsKey(playerId);
+	}
+
+	/**
+	 * Starts building the packets for the given snapshot.  If a build is
+	 * already in progress for the player, the snapshot is dropped, and the
+	 * player is fully updated once that build finishes instead.  Must be
+	 * called on the main thread.
+	 */
+	public void submit(Snapshot snapshot) {
+		UUID playerId = snapshot.player.getUniqueId();
+		Build current = building.get(playerId);
+		if (current != null) {
+			current.updateAgain = snapshot.player;
+			return;
+		}
+
+		Build build = new Build(snapshot, finished);
+		building.put(playerId, build);
+		if (executor != null) {
+			executor.execute(build);
+		} else {
+			build.run();
+			deliverFinished();
+		}
+	}
+
+	/**
+	 * Queues the packets of the builds that have finished with the flusher.
+	 * Must be called on the main thread.
+	 */
+	public void deliverFinished() {
+		Build build;
+		while ((build = finished.poll()) != null) {
+			Player player = build.snapshot.player;
+			if (building.get(player.getUniqueId()) != build) {
+				// Discarded by stop() or discard()
+				continue;
+			}
+			building.remove(player.getUniqueId());
+
+			if (build.failure != null) {
+				plugin.getLogger().log(Level.WARNING, "Failed to build the "
+						+ "packets for " + player.getName() + "; their ranges "
+						+ "will be sent in full next time.", build.failure);
+				plugin.resetRangeSyncState(player.getUniqueId(),
+						build.snapshot.syncState);
+			} else if (player.isOnline()) {
+				for (byte[] packet : build.packets) {
+					flusher.send(player,
+							build.snapshot.channel, packet);
+				}
+			}
+
+			if (build.updateAgain != null && build.updateAgain.isOnline()) {
+				plugin.updatePlayer(build.updateAgain);
+			}
+		}
+	}
+
+	/**
+	 * Builds the packets for a snapshot.  Runs on a worker thread.
+	 */
+	static List<byte[]> build(Snapshot snapshot) {
+		Map<String, List<ProtectionRange>> ranges = snapshot.ranges;
+		if (snapshot.area != null) {
+			ranges = new HashMap<>(ranges);
+			for (Map.Entry<String, List<ProtectionRange>> e : ranges.entrySet()) {
+				e.setValue(snapshot.area.filter(e.getValue()));
+			}
+		}
+
+		List<byte[]> packets = new ArrayList<>();
+		if (snapshot.settingsPackets != null) {
+			packets.addAll(Arrays.asList(snapshot.settingsPackets));
+		}
+		if (snapshot.groupNames == null) {
+			packets.addAll(snapshot.syncState.createUpdatePackets(ranges));
+		} else {
+			packets.addAll(snapshot.syncState.createGroupUpdatePackets(ranges,
+					snapshot.groupNames));
+		}
+		return packets;
+	}
+}
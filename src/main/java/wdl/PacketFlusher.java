@@ -0,0 +1,400 @@
+package wdl;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.bukkit.entity.Player;
+import org.bukkit.scheduler.BukkitTask;
+
+/**
+ * Sends packets and queued range operations to players on the main thread,
+ * without sending more than a set number of bytes and packets each tick.
+ * <br/>
+ * Operations can be queued from any thread without blocking: the queue is a
+ * lock-free {@link ConcurrentLinkedQueue}, and it is drained by a single task
+ * that runs every tick while the plugin is enabled, rather than a new task
+ * being scheduled each time the queue stops being empty.
+ * <br/>
+ * Operations are only turned into packets when they are sent.  All of the
+ * operations queued for a player in a single tick are first merged per
+ * group with {@link RangeOperation#coalesce(List)}, so a plugin that adds
+ * ranges many times in one tick only causes one packet to be sent.
+ * <br/>
+ * Packets (both from operations and ones given to
+ * {@link #send(Player, String, byte[])}) are then queued for each player.
+ * Each tick, players take turns sending a single packet until the budget
+ * runs out, with the rest of the packets carried over to later ticks.
+ * Settings packets (#0, #1, and #3), which are small, are sent before any
+ * others; otherwise each player's packets are sent in order.
+ * <br/>
+ * The packets for updating players are built by this flusher's
+ * {@link PacketBuilder}.  Its finished builds are queued at the start of each
+ * tick, and a player's range operations are held back while a build for
+ * them is in progress.
+ */
+final class PacketFlusher implements Runnable {
+	private final WDLCompanion plugin;
+	private final PacketBuilder builder;
+	/**
+	 * Operations to send on the next tick.
+	 */
+	private final Queue<QueuedOperation> queue = new ConcurrentLinkedQueue<>();
+	/**
+	 * Operations taken from the queue that haven't been sent yet, because
+	 * a build for the player is in progress.  Only used on the main thread.
+	 */
+	private final Map<UUID, PlayerOperations> pendingOperations = new LinkedHashMap<>();
+	private BukkitTask task;
+	/**
+	 * Packets waiting to be sent, by player.  Only used on the main thread.
+	 */
+	private final Map<UUID, PlayerQueue> playerQueues = new HashMap<>();
+	/**
+	 * Players with settings packets to send, in the order of their turns.
+	 */
+	private final Deque<PlayerQueue> controlTurns = new ArrayDeque<>();
+	/**
+	 * Players with other packets to send, in the order of their turns.
+	 */
+	private final Deque<PlayerQueue> bulkTurns = new ArrayDeque<>();
+	/**
+	 * The number of packets waiting to be sent, for metrics.
+	 */
+	private volatile int queuedPackets = 0;
+	/**
+	 * The most bytes and packets to send in a tick, or -1 for no limit.  At
+	 * least one packet is always sent each tick, even if it is larger than
+	 * the byte limit.
+	 */
+	private int maxBytesPerTick = -1, maxPacketsPerTick = -1;
+
+	/**
+	 * An operation to send to a player.
+	 */
+	private static final class QueuedOperation {
+		public QueuedOperation(Player player, String channel,
+				RangeOperation operation) {
+			this.player = player;
+			this.channel = channel;
+			this.operation = operation;
+		}
+
+		public final Player player;
+		public final String channel;
+		public final RangeOperation operation;
+	}
+
+	/**
+	 * The operations queued for a single player that haven't been sent.
+	 */
+	private static final class PlayerOperations {
+		public PlayerOperations(Player player, String channel) {
+			this.player = player;
+			this.channel = channel;
+		}
+
+		public final Player player;
+		/**
+		 * The channel of the last operation that was queued.
+		 */
+		public String channel;
+		/**
+		 * Operations by group, in the order the groups were first changed.
+		 */
+		public final Map<String, List<RangeOperation>> byGroup = new LinkedHashMap<>();
+	}
+
+	/**
+	 * A packet waiting to be sent.
+	 */
+	private static final class QueuedPacket {
+		public QueuedPacket(String channel, byte[] data) {
+			this.channel = channel;
+			this.data = data;
+		}
+
+		public final String channel;
+		public final byte[] data;
+	}
+
+	/**
+	 * The packets waiting to be sent to a single player.
+	 */
+	private static final class PlayerQueue {
+		public PlayerQueue(Player player) {
+			this.player = player;
+		}
+
+		public final Player player;
+		public final Deque<QueuedPacket> control = new ArrayDeque<>();
+		public final Deque<QueuedPacket> bulk = new ArrayDeque<>();
+		/**
+		 * Set once the player's packets are discarded, so that the queue is
+		 * skipped if it's still waiting for a turn.
+		 */
+		public boolean discarded = false;
+	}
+
+	public PacketFlusher(WDLCompanion plugin) {
+		this.plugin = plugin;
+		this.builder = new PacketBuilder(plugin, this);
+	}
+
+	/**
+	 * Gets the builder used to build the packets for updating players.
+	 */
+	public PacketBuilder getBuilder() {
+		return builder;
+	}
+
+	/**
+	 * Starts the task that sends the queued operations.
+	 */
+	public void start() {
+		if (task == null) {
+			task = plugin.getServer().getScheduler()
+					.runTaskTimer(plugin, this, 1, 1);
+		}
+	}
+
+	/**
+	 * Stops sending operations, and discards the ones that are queued.
+	 */
+	public void stop() {
+		if (task != null) {
+			task.cancel();
+			task = null;
+		}
+		queue.clear();
+		pendingOperations.clear();
+		builder.stop();
+		for (PlayerQueue playerQueue : playerQueues.values()) {
+			playerQueue.discarded = true;
+		}
+		playerQueues.clear();
+		controlTurns.clear();
+		bulkTurns.clear();
+		queuedPackets = 0;
+	}
+
+	/**
+	 * Sets the most bytes and packets that are sent each tick.
+	 *
+	 * @param maxBytesPerTick
+	 *            The byte limit, or -1 for no limit.
+	 * @param maxPacketsPerTick
+	 *            The packet limit, or -1 for no limit.
+	 */
+	public void setBudget(int maxBytesPerTick, int maxPacketsPerTick) {
+		this.maxBytesPerTick = (maxBytesPerTick < 0 ? -1 : maxBytesPerTick);
+		this.maxPacketsPerTick = (maxPacketsPerTick < 0 ? -1
+				: maxPacketsPerTick);
+	}
+
+	/**
+	 * Gets the number of packets that are waiting to be sent.  Can be called
+	 * from any thread.
+	 */
+	public int getQueuedPacketCount() {
+		return queuedPackets;
+	}
+
+	/**
+	 * Queues a packet to be sent to the given player.  Must be called on the
+	 * main thread.
+	 *
+	 * @param player
+	 *            The player to send the packet to.
+	 * @param channel
+	 *            The channel to send it on.
+	 * @param data
+	 *            The packet.
+	 */
+	public void send(Player player, String channel, byte[] data) {
+		PlayerQueue playerQueue = playerQueues.get(player.getUniqueId());
+		if (playerQueue == null) {
+			playerQueue = new PlayerQueue(player);
+			playerQueues.put(player.getUniqueId(), playerQueue);
+		}
+
+		Deque<QueuedPacket> packets;
+		Deque<PlayerQueue> turns;
+		if (isControlPacket(data)) {
+			packets = playerQueue.control;
+			turns = controlTurns;
+		} else {
+			packets = playerQueue.bulk;
+			turns = bulkTurns;
+		}
+		if (packets.isEmpty()) {
+			turns.addLast(playerQueue);
+		}
+		packets.addLast(new QueuedPacket(channel, data));
+		queuedPackets++;
+	}
+
+	/**
+	 * Discards the packets waiting to be sent to the given player, for
+	 * instance because they left.  Must be called on the main thread.
+	 */
+	public void discard(UUID playerId) {
+		pendingOperations.remove(playerId);
+		builder.discard(playerId);
+		PlayerQueue playerQueue = playerQueues.remove(playerId);
+		if (playerQueue != null) {
+			playerQueue.discarded = true;
+			queuedPackets -= playerQueue.control.size()
+					+ playerQueue.bulk.size();
+		}
+	}
+
+	/**
+	 * Checks if the given packet is #0, #1, or #3, which are always small.
+	 */
+	private static boolean isControlPacket(byte[] data) {
+		if (data.length < 4) {
+			return false;
+		}
+		int id = ((data[0] & 0xFF) << 24) | ((data[1] & 0xFF) << 16)
+				| ((data[2] & 0xFF) << 8) | (data[3] & 0xFF);
+		return id == 0 || id == 1 || id == 3;
+	}
+
+	/**
+	 * Queues an operation to be sent on the next tick.  Can be called from
+	 * any thread.
+	 *
+	 * @param player
+	 *            The player to send the operation to.
+	 * @param channel
+	 *            The channel to send it on.
+	 * @param operation
+	 *            The operation.
+	 */
+	public void queue(Player player, String channel, RangeOperation operation) {
+		queue.add(new QueuedOperation(player, channel, operation));
+	}
+
+	@Override
+	public void run() {
+		builder.deliverFinished();
+		queueOperations();
+		sendQueuedPackets();
+	}
+
+	/**
+	 * Merges the operations that were queued since the last tick, and queues
+	 * their packets, except for players with a build in progress.
+	 */
+	private void queueOperations() {
+		QueuedOperation queued;
+		while ((queued = queue.poll()) != null) {
+			UUID id = queued.player.getUniqueId();
+			PlayerOperations operations = pendingOperations.get(id);
+			if (operations == null) {
+				operations = new PlayerOperations(queued.player, queued.channel);
+				pendingOperations.put(id, operations);
+			}
+			operations.channel = queued.channel;
+
+			List<RangeOperation> groupOperations = operations.byGroup
+					.get(queued.operation.group);
+			if (groupOperations == null) {
+				groupOperations = new ArrayList<>();
+				operations.byGroup.put(queued.operation.group, groupOperations);
+			}
+			groupOperations.add(queued.operation);
+		}
+
+		Iterator<Map.Entry<UUID, PlayerOperations>> itr = pendingOperations
+				.entrySet().iterator();
+		while (itr.hasNext()) {
+			Map.Entry<UUID, PlayerOperations> e = itr.next();
+			if (!builder.isBuilding(e.getKey())) {
+				itr.remove();
+				queueOperations(e.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Merges the operations for a single player, and queues their packets.
+	 */
+	private void queueOperations(PlayerOperations operations) {
+		RangeSyncState syncState = plugin.getRangeSyncState(operations.player
+				.getUniqueId());
+		for (List<RangeOperation> groupOperations : operations.byGroup.values()) {
+			for (RangeOperation operation : RangeOperation
+					.coalesce(groupOperations)) {
+				if (syncState != null) {
+					syncState.apply(operation);
+				}
+				for (byte[] data : operation.createPackets()) {
+					send(operations.player, operations.channel, data);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sends queued packets until this tick's budget runs out, with settings
+	 * packets first.
+	 */
+	private void sendQueuedPackets() {
+		int sentBytes = 0;
+		int sentPackets = 0;
+		for (Deque<PlayerQueue> turns : Arrays.asList(controlTurns, bulkTurns)) {
+			while (!turns.isEmpty()) {
+				PlayerQueue playerQueue = turns.peekFirst();
+				Deque<QueuedPacket> packets = (turns == controlTurns
+						? playerQueue.control : playerQueue.bulk);
+				if (playerQueue.discarded) {
+					turns.removeFirst();
+					continue;
+				}
+				if (!playerQueue.player.isOnline()) {
+					discard(playerQueue.player.getUniqueId());
+					turns.removeFirst();
+					continue;
+				}
+
+				QueuedPacket packet = packets.peekFirst();
+				if (sentPackets > 0) {
+					if (maxPacketsPerTick >= 0
+							&& sentPackets >= maxPacketsPerTick) {
+						return;
+					}
+					if (maxBytesPerTick >= 0
+							&& sentBytes + packet.data.length > maxBytesPerTick) {
+						return;
+					}
+				}
+
+				turns.removeFirst();
+				packets.removeFirst();
+				queuedPackets--;
+				playerQueue.player.sendPluginMessage(plugin, packet.channel,
+						packet.data);
+				sentBytes += packet.data.length;
+				sentPackets++;
+
+				if (!packets.isEmpty()) {
+					turns.addLast(playerQueue);
+				} else if (playerQueue.control.isEmpty()
+						&& playerQueue.bulk.isEmpty()) {
+					playerQueues.remove(playerQueue.player.getUniqueId());
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,145 @@
+package wdl;
+
+import wdl.range.ProtectionRange;
+
+/**
+ * Writes packet data into an array of a size that is known ahead of time, in
+ * the same format as {@link java.io.DataOutput}.  The array that is written
+ * to is the one returned by {@link #toByteArray()}, so nothing else needs to
+ * be allocated or copied.
+ * <br/>
+ * The size should be computed with {@link #sizeOfUTF(String)},
+ * {@link #sizeOfRange(ProtectionRange)}, and the <code>SIZE_OF</code>
+ * constants.
+ */
+final class PacketWriter {
+	public static final int SIZE_OF_INT = 4;
+	public static final int SIZE_OF_BOOLEAN = 1;
+
+	private final byte[] data;
+	private int position = 0;
+
+	/**
+	 * Creates a new PacketWriter.
+	 *
+	 * @param size
+	 *            The exact number of bytes that will be written.
+	 */
+	public PacketWriter(int size) {
+		this.data = new byte[size];
+	}
+
+	/**
+	 * Gets the number of bytes that {@link #writeUTF(String)} writes for the
+	 * given string, including the length.
+	 *
+	 * @throws IllegalArgumentException
+	 *             If the string is too long to be written.
+	 */
+	public static int sizeOfUTF(String str) {
+		int length = utfLength(str);
+		if (length > 65535) {
+			throw new IllegalArgumentException("String is too long to be sent "
+					+ "(" + length + " bytes when encoded, max 65535): "
+					+ str.substring(0, 32) + "...");
+		}
+		return 2 + length;
+	}
+
+	/**
+	 * Gets the number of bytes that {@link #writeRange(ProtectionRange)}
+	 * writes for the given range.
+	 */
+	public static int sizeOfRange(ProtectionRange range) {
+		return sizeOfUTF(range.tag) + SIZE_OF_INT * 4;
+	}
+
+	public void writeInt(int value) {
+		data[position++] = (byte) (value >>> 24);
+		data[position++] = (byte) (value >>> 16);
+		data[position++] = (byte) (value >>> 8);
+		data[position++] = (byte) value;
+	}
+
+	public void writeBoolean(boolean value) {
+		data[position++] = (byte) (value ? 1 : 0);
+	}
+
+	/**
+	 * Writes a string in modified UTF-8, as
+	 * {@link java.io.DataOutput#writeUTF(String)} does.
+	 */
+	public void writeUTF(String str) {
+		int length = utfLength(str);
+		data[position++] = (byte) (length >>> 8);
+		data[position++] = (byte) length;
+
+		int count = str.length();
+		int i = 0;
+		// Most strings are ASCII, which is one byte per char
+		for (; i < count; i++) {
+			char c = str.charAt(i);
+			if (c == 0 || c > 0x7F) {
+				break;
+			}
+			data[position++] = (byte) c;
+		}
+		for (; i < count; i++) {
+			char c = str.charAt(i);
+			if (c != 0 && c <= 0x7F) {
+				data[position++] = (byte) c;
+			} else if (c <= 0x7FF) {
+				data[position++] = (byte) (0xC0 | (c >> 6));
+				data[position++] = (byte) (0x80 | (c & 0x3F));
+			} else {
+				data[position++] = (byte) (0xE0 | (c >> 12));
+				data[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				data[position++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+	}
+
+	/**
+	 * Writes a protection range: a string with the range's tag, then 4
+	 * integers for the coordinates (x1, z1, x2, z2), with x1 and x2 (and z1
+	 * and z2) swapped if needed so that the first is the smaller one.
+	 */
+	public void writeRange(ProtectionRange range) {
+		writeUTF(range.tag);
+		writeInt(Math.min(range.x1, range.x2));
+		writeInt(Math.min(range.z1, range.z2));
+		writeInt(Math.max(range.x1, range.x2));
+		writeInt(Math.max(range.z1, range.z2));
+	}
+
+	/**
+	 * Gets the written data.
+	 *
+	 * @throws IllegalStateException
+	 *             If fewer bytes were written than the size given to the
+	 *             constructor.
+	 */
+	public byte[] toByteArray() {
+		if (position != data.length) {
+			throw new IllegalStateException("Only wrote " + position
+					+ " of " + data.length + " bytes!");
+		}
+		return data;
+	}
+
+	/**
+	 * Number of bytes the given string takes in modified UTF-8, not including
+	 * the length.
+	 */
+	private static int utfLength(String str) {
+		int count = str.length();
+		int length = count;
+		for (int i = 0; i < count; i++) {
+			char c = str.charAt(i);
+			if (c == 0 || c > 0x7F) {
+				length += (c <= 0x7FF ? 1 : 2);
+			}
+		}
+		return length;
+	}
+}
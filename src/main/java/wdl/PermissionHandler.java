@@ -1,5 +1,8 @@
 package wdl;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
 import java.util.logging.Level;
 
 import org.bukkit.entity.Player;
@@ -13,12 +16,67 @@ import wdl.request.PermissionRequest;
  *
  */
 public class PermissionHandler {
+	/**
+	 * Longest time that a player's resolved permissions are reused, in
+	 * milliseconds.  Bukkit doesn't have an event for when a player's
+	 * permissions change, so they are resolved again after this long.
+	 */
+	private static final long MAX_RESOLVED_AGE = 30000;
+	
 	private WDLCompanion plugin;
+	/**
+	 * Resolved permissions of each player, until something that affects them
+	 * changes.
+	 */
+	private final Map<UUID, ResolvedPermissions> resolvedPermissions = new HashMap<>();
 	
 	public PermissionHandler(WDLCompanion plugin) {
 		this.plugin = plugin;
 	}
 	
+	/**
+	 * Gets all of the permissions of the given player.  These are cached
+	 * until the player changes worlds, one of the invalidate methods is
+	 * called, or they become too old.
+	 */
+	ResolvedPermissions getResolvedPermissions(Player player) {
+		long now = System.currentTimeMillis();
+		ResolvedPermissions permissions;
+		synchronized (resolvedPermissions) {
+			permissions = resolvedPermissions.get(player.getUniqueId());
+		}
+		if (permissions != null && permissions.world == player.getWorld()
+				&& now - permissions.resolvedAt < MAX_RESOLVED_AGE) {
+			return permissions;
+		}
+		
+		permissions = new ResolvedPermissions(this, player, now);
+		synchronized (resolvedPermissions) {
+			resolvedPermissions.put(player.getUniqueId(), permissions);
+		}
+		return permissions;
+	}
+	
+	/**
+	 * Discards the cached permissions of the given player, EG because their
+	 * permission request changed.
+	 */
+	public void invalidate(UUID playerId) {
+		synchronized (resolvedPermissions) {
+			resolvedPermissions.remove(playerId);
+		}
+	}
+	
+	/**
+	 * Discards the cached permissions of all players, EG because the config
+	 * was reloaded.
+	 */
+	public void invalidateAll() {
+		synchronized (resolvedPermissions) {
+			resolvedPermissions.clear();
+		}
+	}
+	
 	/**
 	 * Can the given player download at all in all chunks?
 	 */
@@ -30,7 +88,7 @@ public class PermissionHandler {
 			return true;
 		}
 		
-		return getPerworldBoolean(player, "canDownloadInGeneral");
+		return getWorldSettings(player).canDownloadInGeneral;
 	}
 	
 	/**
@@ -44,7 +102,7 @@ public class PermissionHandler {
 			return true;
 		}
 		
-		return getPerworldBoolean(player, "canCacheChunks");
+		return getWorldSettings(player).canCacheChunks;
 	}
 	
 	/**
@@ -58,7 +116,7 @@ public class PermissionHandler {
 			return true;
 		}
 		
-		return getPerworldBoolean(player, "canSaveEntities");
+		return getWorldSettings(player).canSaveEntities;
 	}
 	
 	/**
@@ -72,7 +130,7 @@ public class PermissionHandler {
 			return true;
 		}
 		
-		return getPerworldBoolean(player, "canSaveTileEntities");
+		return getWorldSettings(player).canSaveTileEntities;
 	}
 	
 	/**
@@ -86,7 +144,7 @@ public class PermissionHandler {
 			return true;
 		}
 		
-		return getPerworldBoolean(player, "canSaveContainers");
+		return getWorldSettings(player).canSaveContainers;
 	}
 	
 	/**
@@ -99,7 +157,7 @@ public class PermissionHandler {
 		}
 		// No request value for this. 
 		
-		return getPerworldBoolean(player, "canDoNewThings");
+		return getWorldSettings(player).canDoNewThings;
 	}
 	
 	/**
@@ -113,7 +171,7 @@ public class PermissionHandler {
 			return true;
 		}
 		
-		return getPerworldBoolean(player, "sendEntityRanges");
+		return getWorldSettings(player).sendEntityRanges;
 	}
 	
 	/**
@@ -143,35 +201,14 @@ public class PermissionHandler {
 			}
 		}
 		
-		int configDownloadRadius;
-		
-		String worldConfigKey = "wdl.per-world." + 
-				player.getWorld().getName() + ".saveRadius";
-		if (plugin.getConfig().isInt(worldConfigKey)) {
-			configDownloadRadius = plugin.getConfig().getInt(worldConfigKey);
-		} else {
-			configDownloadRadius = plugin.getConfig().getInt("wdl.saveRadius");
-		}
-		
-		if (configDownloadRadius <= -1) {
-			return -1;
-		}
-
-		return configDownloadRadius;
+		return getWorldSettings(player).saveRadius;
 	}
 	
 	/**
-	 * Gets a boolean from the configuration, using the overriden value
-	 * from the given world if necessary.
+	 * Gets the configured settings for the world the player is in.
 	 */
-	private boolean getPerworldBoolean(Player player, String configKey) {
-		String worldName = player.getWorld().getName();
-		String worldKey = "wdl.per-world." + worldName + "." + configKey;
-		if (plugin.getConfig().isBoolean(worldKey)) {
-			return plugin.getConfig().getBoolean(worldKey);
-		}
-		
-		return plugin.getConfig().getBoolean("wdl." + configKey);
+	private WorldSettings getWorldSettings(Player player) {
+		return plugin.getWorldSettings(player.getWorld());
 	}
 	
 	/**
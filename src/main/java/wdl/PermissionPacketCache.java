@@ -0,0 +1,191 @@
+package wdl;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of the encoded permission packets (#0 through #3) created by
+ * {@link WDLCompanion#updatePlayer(org.bukkit.entity.Player)}.  The range
+ * packets depend on what each client already has, and are handled by
+ * {@link RangeSyncState} instead.
+ * <br/>
+ * Entries are keyed by a {@link Fingerprint} of everything that goes into
+ * the packets, so players with the same effective permissions share the same
+ * arrays.  The arrays returned from this cache must never be modified.
+ */
+class PermissionPacketCache {
+	/**
+	 * Packet #2 for players that aren't sent entity ranges.
+	 */
+	private static final byte[] NO_ENTITY_RANGES_PACKET = WDLPackets
+			.createWDLPacket2(Collections.<String, Integer> emptyMap());
+	/**
+	 * Maximum number of entries to keep; the least recently used entry is
+	 * removed once this is exceeded.
+	 */
+	private static final int MAX_ENTRIES = 256;
+
+	private final Map<Fingerprint, byte[][]> cache = new LinkedHashMap<Fingerprint, byte[][]>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(
+				Map.Entry<Fingerprint, byte[][]> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+
+	/**
+	 * Gets packets #0 through #3 for the given permissions, creating and
+	 * caching them if they haven't been cached yet.  This doesn't need a
+	 * server, so that it can be benchmarked.
+	 * 
+	 * @param permissions
+	 *            The player's permissions.
+	 * @param worldName
+	 *            The name of the world the player is in.
+	 * @param entityRangesPacket
+	 *            Packet #2 with the entity ranges of that world, which is
+	 *            only sent if the player can save entities and entity ranges
+	 *            are sent.
+	 * @param requestMessage
+	 *            The request message of that world, for packet #3.
+	 * @return The packets, which must not be modified.
+	 */
+	public byte[][] getPackets(ResolvedPermissions permissions,
+			String worldName, byte[] entityRangesPacket, String requestMessage) {
+		boolean globalIsEnabled = permissions.canDownloadInGeneral;
+		int saveRadius = permissions.saveRadius;
+		boolean cacheChunks = permissions.canCacheChunks;
+		boolean saveEntities = permissions.canSaveEntities;
+		boolean saveTileEntities = permissions.canSaveTileEntities;
+		boolean saveContainers = permissions.canSaveContainers;
+		boolean canDoNewThings = permissions.canDoNewThings;
+		boolean sendEntityRanges = globalIsEnabled && saveEntities
+				&& permissions.sendEntityRanges;
+
+		Fingerprint fingerprint = new Fingerprint(worldName, globalIsEnabled,
+				saveRadius, cacheChunks, saveEntities, saveTileEntities,
+				saveContainers, canDoNewThings, sendEntityRanges);
+		byte[][] packets = get(fingerprint);
+		if (packets != null) {
+			return packets;
+		}
+
+		packets = new byte[4][];
+
+		//Packet #1
+		packets[1] = WDLPackets.createWDLPacket1(globalIsEnabled, saveRadius, cacheChunks,
+				saveEntities, saveTileEntities, saveContainers);
+
+		//Packet #0
+		packets[0] = WDLPackets.createWDLPacket0(canDoNewThings && globalIsEnabled);
+
+		//Packet #2
+		if (sendEntityRanges) {
+			packets[2] = entityRangesPacket;
+		} else {
+			packets[2] = NO_ENTITY_RANGES_PACKET;
+		}
+
+		//Packet #3
+		packets[3] = WDLPackets.createWDLPacket3(requestMessage);
+
+		put(fingerprint, packets);
+		return packets;
+	}
+
+	/**
+	 * Gets the packets for the given fingerprint, or <code>null</code> if
+	 * they have not been cached.
+	 */
+	public synchronized byte[][] get(Fingerprint fingerprint) {
+		return cache.get(fingerprint);
+	}
+
+	/**
+	 * Stores the packets for the given fingerprint.
+	 */
+	public synchronized void put(Fingerprint fingerprint, byte[][] packets) {
+		cache.put(fingerprint, packets);
+	}
+
+	/**
+	 * Removes all cached packets.  Should be called whenever the config is
+	 * reloaded or a request changes state.
+	 */
+	public synchronized void invalidate() {
+		cache.clear();
+	}
+
+	/**
+	 * The effective permissions of a player: all of the values that are
+	 * used to create the packets.
+	 */
+	static final class Fingerprint {
+		private static final int GLOBAL_IS_ENABLED = 1 << 0;
+		private static final int CACHE_CHUNKS = 1 << 1;
+		private static final int SAVE_ENTITIES = 1 << 2;
+		private static final int SAVE_TILE_ENTITIES = 1 << 3;
+		private static final int SAVE_CONTAINERS = 1 << 4;
+		private static final int CAN_DO_NEW_THINGS = 1 << 5;
+		private static final int SEND_ENTITY_RANGES = 1 << 6;
+
+		/**
+		 * Name of the world; the entity ranges and request message depend on
+		 * it.
+		 */
+		private final String worldName;
+		/**
+		 * The resolved booleans, as a bitfield.
+		 */
+		private final int flags;
+		private final int saveRadius;
+		private final int hash;
+
+		public Fingerprint(String worldName, boolean globalIsEnabled,
+				int saveRadius, boolean cacheChunks, boolean saveEntities,
+				boolean saveTileEntities, boolean saveContainers,
+				boolean canDoNewThings, boolean sendEntityRanges) {
+			int flags = (globalIsEnabled ? GLOBAL_IS_ENABLED : 0)
+					| (cacheChunks ? CACHE_CHUNKS : 0)
+					| (saveEntities ? SAVE_ENTITIES : 0)
+					| (saveTileEntities ? SAVE_TILE_ENTITIES : 0)
+					| (saveContainers ? SAVE_CONTAINERS : 0)
+					| (canDoNewThings ? CAN_DO_NEW_THINGS : 0)
+					| (sendEntityRanges ? SEND_ENTITY_RANGES : 0);
+
+			this.worldName = worldName;
+			this.flags = flags;
+			this.saveRadius = saveRadius;
+
+			final int prime = 31;
+			int result = 1;
+			result = prime * result + worldName.hashCode();
+			result = prime * result + flags;
+			result = prime * result + saveRadius;
+			this.hash = result;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Fingerprint)) {
+				return false;
+			}
+			Fingerprint other = (Fingerprint) obj;
+			return hash == other.hash && flags == other.flags
+					&& saveRadius == other.saveRadius
+					&& worldName.equals(other.worldName);
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package wdl;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import org.bukkit.ChatColor;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+import org.bukkit.scheduler.BukkitTask;
+
+/**
+ * Sends players their WDL settings, a few players each tick, so that
+ * updating every player (on startup, <code>/wdl reload</code>, or
+ * <code>/wdl updateall</code>) doesn't happen all in one tick.  Players are
+ * updated in the order they were given, and the command sender that started
+ * the update (if any) is told how far along it is.
+ * <br/>
+ * Only one update runs at a time: when a new one is started, the old one is
+ * cancelled and the players it hadn't updated yet are updated by the new one,
+ * after the new one's own players.
+ */
+public final class PlayerUpdateTask implements Runnable {
+	/**
+	 * How often the sender is told how far along the update is, in ticks.
+	 */
+	private static final int PROGRESS_INTERVAL = 20;
+
+	private final WDLCompanion plugin;
+	private final Deque<Player> remaining;
+	private final int total;
+	/**
+	 * The most players to update each tick (at least 1), or -1 for no limit.
+	 */
+	private final int playersPerTick;
+	/**
+	 * The sender to report progress to; may be null.
+	 */
+	private final CommandSender sender;
+	private int updatedCount = 0;
+	private int ticks = 0;
+	private boolean done = false;
+	private boolean cancelled = false;
+	private BukkitTask task;
+
+	PlayerUpdateTask(WDLCompanion plugin, List<Player> players,
+			int playersPerTick, CommandSender sender) {
+		this.plugin = plugin;
+		this.remaining = new ArrayDeque<>(players);
+		this.total = players.size();
+		this.playersPerTick = playersPerTick;
+		this.sender = sender;
+	}
+
+	/**
+	 * Updates the first players now, and schedules the rest.
+	 */
+	void start() {
+		updateNext();
+		if (!done) {
+			sendMessage(ChatColor.GRAY + "Updating the WDL permissions of "
+					+ total + " players...");
+			task = plugin.getServer().getScheduler()
+					.runTaskTimer(plugin, this, 1, 1);
+		}
+	}
+
+	@Override
+	public void run() {
+		ticks++;
+		updateNext();
+		if (!done && ticks % PROGRESS_INTERVAL == 0) {
+			sendMessage(ChatColor.GRAY + "Updated " + updatedCount + " of "
+					+ total + " players...");
+		}
+	}
+
+	/**
+	 * Updates the players for a single tick.
+	 */
+	private void updateNext() {
+		int count = 0;
+		while (!remaining.isEmpty()
+				&& (playersPerTick < 0 || count < playersPerTick)) {
+			Player player = remaining.poll();
+			if (!player.isOnline()) {
+				// They'll be updated when they rejoin
+				continue;
+			}
+			plugin.updatePlayer(player);
+			updatedCount++;
+			count++;
+		}
+		if (remaining.isEmpty()) {
+			done = true;
+			if (task != null) {
+				task.cancel();
+				task = null;
+			}
+			sendMessage(ChatColor.GREEN + "Updated the WDL permissions of "
+					+ updatedCount + " players.");
+		}
+	}
+
+	/**
+	 * Stops updating players.  Players that haven't been updated yet won't
+	 * be.
+	 */
+	public void cancel() {
+		if (done) {
+			return;
+		}
+		done = true;
+		cancelled = true;
+		if (task != null) {
+			task.cancel();
+			task = null;
+		}
+	}
+
+	/**
+	 * Cancels this update because a newer one was started.
+	 *
+	 * @return The players that hadn't been updated yet, for the new update.
+	 */
+	List<Player> supersede() {
+		List<Player> players = new ArrayList<>(remaining);
+		if (!done) {
+			cancel();
+			sendMessage(ChatColor.GRAY + "The remaining " + players.size()
+					+ " players will be updated by a newer update.");
+		}
+		return players;
+	}
+
+	private void sendMessage(String message) {
+		if (sender == null) {
+			return;
+		}
+		if (sender instanceof Player && !((Player) sender).isOnline()) {
+			return;
+		}
+		sender.sendMessage(message);
+	}
+
+	/**
+	 * Gets the number of players that this update was started with.
+	 */
+	public int getTotal() {
+		return total;
+	}
+
+	/**
+	 * Gets the number of players that have been updated so far.
+	 */
+	public int getUpdatedCount() {
+		return updatedCount;
+	}
+
+	/**
+	 * Gets the number of players that haven't been updated yet.
+	 */
+	public int getRemainingCount() {
+		return remaining.size();
+	}
+
+	/**
+	 * Has this update finished (or been cancelled)?
+	 */
+	public boolean isDone() {
+		return done;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+}
@@ -0,0 +1,389 @@
+package wdl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bukkit.configuration.ConfigurationSection;
+
+import wdl.range.ChunkSet;
+import wdl.range.ProtectionRange;
+
+/**
+ * Merges {@link ProtectionRange}s into larger rectangles, so that fewer ranges
+ * need to be sent.  How this is done depends on the {@link Mode}.
+ * <br/>
+ * The cost only depends on the number of ranges, not on the area they cover.
+ */
+final class RangeCompactor {
+	/**
+	 * The different ways ranges can be compacted, set with
+	 * "wdl.rangeCompactionMode".
+	 */
+	static enum Mode {
+		/**
+		 * Ranges are sent as they are.
+		 */
+		NONE,
+		/**
+		 * Only single-chunk ranges are merged: the chunks are sorted by (z, x),
+		 * joined into horizontal runs, and runs with the same span on
+		 * consecutive rows are joined into rectangles.
+		 */
+		STRIPS,
+		/**
+		 * Ranges of any size are merged, including overlapping ones: the area
+		 * is cut into horizontal slabs wherever a range starts or ends, the
+		 * ranges in each slab are joined into runs, and runs with the same
+		 * span in consecutive slabs are joined into rectangles.  If this takes
+		 * longer than the time budget, {@link #STRIPS} is used instead.
+		 */
+		RECTANGLES
+	}
+
+	private final Mode mode;
+	/**
+	 * Time that {@link Mode#RECTANGLES} may take for a single call, in
+	 * nanoseconds.
+	 */
+	private final long timeBudgetNanos;
+
+	/**
+	 * Creates a new RangeCompactor.
+	 *
+	 * @param mode
+	 *            The mode to use.
+	 * @param timeBudgetMillis
+	 *            The time that {@link Mode#RECTANGLES} may take for a single
+	 *            call, in milliseconds.
+	 */
+	RangeCompactor(Mode mode, long timeBudgetMillis) {
+		if (mode == null) {
+			throw new IllegalArgumentException("mode must not be null!");
+		}
+		this.mode = mode;
+		this.timeBudgetNanos = timeBudgetMillis * 1000000L;
+	}
+
+	/**
+	 * Creates a RangeCompactor using the settings in the given config.
+	 * Invalid settings are reported by {@link ConfigValidation}, and the
+	 * defaults are used instead.
+	 */
+	static RangeCompactor fromConfig(ConfigurationSection config) {
+		Mode mode;
+		try {
+			mode = Mode.valueOf(config.getString("wdl.rangeCompactionMode",
+					"strips").toUpperCase());
+		} catch (IllegalArgumentException e) {
+			mode = Mode.STRIPS;
+		}
+		int timeBudget = config.getInt("wdl.rangeCompactionTimeBudget", 5);
+		return new RangeCompactor(mode, Math.max(timeBudget, 0));
+	}
+
+	/**
+	 * Convert the given list of ranges into an equivalent list with ranges
+	 * merged together.
+	 */
+	public List<ProtectionRange> compact(List<ProtectionRange> ranges) {
+		switch (mode) {
+		case NONE: return new ArrayList<>(ranges);
+		case STRIPS: return compactStrips(ranges);
+		case RECTANGLES: return compactRectangles(ranges);
+		default: throw new AssertionError("Unknown mode " + mode);
+		}
+	}
+
+	/**
+	 * Merges only the single-chunk ranges; ranges that cover more than one
+	 * chunk are kept as-is.
+	 */
+	private static List<ProtectionRange> compactStrips(List<ProtectionRange> ranges) {
+		Map<String, TagRanges> byTag = new LinkedHashMap<>();
+		// Also removes duplicates
+		Set<ProtectionRange> largerRanges = new LinkedHashSet<>();
+
+		for (ProtectionRange range : ranges) {
+			if (range.x1 == range.x2 && range.z1 == range.z2) {
+				TagRanges tagRanges = byTag.get(range.tag);
+				if (tagRanges == null) {
+					tagRanges = new TagRanges();
+					byTag.put(range.tag, tagRanges);
+				}
+				tagRanges.add(range.x1, range.z1);
+			} else {
+				largerRanges.add(range);
+			}
+		}
+
+		List<ProtectionRange> finalRanges = new ArrayList<>(largerRanges);
+
+		for (Map.Entry<String, TagRanges> e : byTag.entrySet()) {
+			e.getValue().compact(e.getKey(), finalRanges);
+		}
+
+		return finalRanges;
+	}
+
+	/**
+	 * Merges all of the ranges, falling back to {@link #compactStrips(List)}
+	 * if the time budget runs out.
+	 */
+	private List<ProtectionRange> compactRectangles(List<ProtectionRange> ranges) {
+		long deadline = System.nanoTime() + timeBudgetNanos;
+
+		Map<String, List<ProtectionRange>> byTag = new LinkedHashMap<>();
+		for (ProtectionRange range : ranges) {
+			List<ProtectionRange> list = byTag.get(range.tag);
+			if (list == null) {
+				list = new ArrayList<>();
+				byTag.put(range.tag, list);
+			}
+			list.add(range);
+		}
+
+		List<ProtectionRange> finalRanges = new ArrayList<>();
+		for (Map.Entry<String, List<ProtectionRange>> e : byTag.entrySet()) {
+			if (!coverRectangles(e.getKey(), e.getValue(), deadline, finalRanges)) {
+				return compactStrips(ranges);
+			}
+		}
+		return finalRanges;
+	}
+
+	/**
+	 * Adds rectangles covering exactly the given ranges (which all have the
+	 * same tag) to the output.
+	 *
+	 * @return false if the deadline passed, in which case the output should
+	 *         be discarded.
+	 */
+	private static boolean coverRectangles(String tag,
+			List<ProtectionRange> ranges, long deadline,
+			List<ProtectionRange> output) {
+		int n = ranges.size();
+		int[] x1s = new int[n], z1s = new int[n], x2s = new int[n], z2s = new int[n];
+		// Slab boundaries: the first z of each range, and the z after it
+		long[] breaks = new long[n * 2];
+		// Ranges sorted by their first z (index in the low bits)
+		long[] order = new long[n];
+		for (int i = 0; i < n; i++) {
+			ProtectionRange range = ranges.get(i);
+			x1s[i] = Math.min(range.x1, range.x2);
+			x2s[i] = Math.max(range.x1, range.x2);
+			z1s[i] = Math.min(range.z1, range.z2);
+			z2s[i] = Math.max(range.z1, range.z2);
+			breaks[i * 2] = z1s[i];
+			breaks[i * 2 + 1] = (long) z2s[i] + 1;
+			order[i] = ((long) z1s[i] << 32) | i;
+		}
+		Arrays.sort(breaks);
+		Arrays.sort(order);
+		int numBreaks = 0;
+		for (int i = 0; i < breaks.length; i++) {
+			if (i == 0 || breaks[i] != breaks[i - 1]) {
+				breaks[numBreaks++] = breaks[i];
+			}
+		}
+
+		int[] active = new int[n];
+		int numActive = 0;
+		long[] spans = new long[n];
+		int nextRange = 0;
+		Rows rows = new Rows();
+
+		for (int slab = 0; slab < numBreaks - 1; slab++) {
+			if (System.nanoTime() > deadline) {
+				return false;
+			}
+			int zStart = (int) breaks[slab];
+			int zEnd = (int) (breaks[slab + 1] - 1);
+
+			while (nextRange < n && (int) (order[nextRange] >> 32) == zStart) {
+				active[numActive++] = (int) order[nextRange];
+				nextRange++;
+			}
+			int kept = 0;
+			for (int i = 0; i < numActive; i++) {
+				if (z2s[active[i]] >= zStart) {
+					active[kept++] = active[i];
+				}
+			}
+			numActive = kept;
+			if (numActive == 0) {
+				continue;
+			}
+
+			for (int i = 0; i < numActive; i++) {
+				int index = active[i];
+				spans[i] = ((long) x1s[index] << 32)
+						| ((x2s[index] ^ Integer.MIN_VALUE) & 0xFFFFFFFFL);
+			}
+			Arrays.sort(spans, 0, numActive);
+
+			rows.startRow(zStart, zEnd);
+			int runStart = (int) (spans[0] >> 32);
+			int runEnd = (int) spans[0] ^ Integer.MIN_VALUE;
+			for (int i = 1; i < numActive; i++) {
+				int x1 = (int) (spans[i] >> 32);
+				int x2 = (int) spans[i] ^ Integer.MIN_VALUE;
+				if ((long) x1 <= (long) runEnd + 1) {
+					runEnd = Math.max(runEnd, x2);
+				} else {
+					rows.addRun(runStart, runEnd, tag, output);
+					runStart = x1;
+					runEnd = x2;
+				}
+			}
+			rows.addRun(runStart, runEnd, tag, output);
+			rows.endRow(tag, output);
+		}
+		rows.finish(tag, output);
+		return true;
+	}
+
+	/**
+	 * The single-chunk ranges for a single tag.
+	 */
+	private static final class TagRanges {
+		/**
+		 * The chunks, without duplicates.
+		 */
+		private final ChunkSet chunkSet = new ChunkSet();
+
+		public void add(int x, int z) {
+			chunkSet.add(x, z);
+		}
+
+		/**
+		 * Adds the merged rectangles for these chunks to the given list.
+		 */
+		public void compact(String tag, List<ProtectionRange> output) {
+			long[] chunks = chunkSet.toArray();
+			int size = chunks.length;
+			// Packed chunks sort by z and then x, which is row order
+			Arrays.sort(chunks);
+
+			// Rectangles that reach the previous row, sorted by x1
+			Rows rows = new Rows();
+
+			int i = 0;
+			while (i < size) {
+				int z = ChunkSet.unpackZ(chunks[i]);
+				rows.startRow(z, z);
+
+				while (i < size && ChunkSet.unpackZ(chunks[i]) == z) {
+					int runStart = ChunkSet.unpackX(chunks[i]);
+					int runEnd = runStart;
+					i++;
+					while (i < size && ChunkSet.unpackZ(chunks[i]) == z) {
+						int x = ChunkSet.unpackX(chunks[i]);
+						if ((long) x == (long) runEnd + 1) {
+							runEnd = x;
+							i++;
+						} else {
+							break;
+						}
+					}
+					rows.addRun(runStart, runEnd, tag, output);
+				}
+
+				rows.endRow(tag, output);
+			}
+			rows.finish(tag, output);
+		}
+	}
+
+	/**
+	 * Joins horizontal runs on consecutive rows into rectangles.  Rows may be
+	 * more than one chunk tall.  Rows must be added in increasing z order and,
+	 * within a row, runs must be added in increasing x order.
+	 */
+	private static final class Rows {
+		// Rectangles ending on the previous row
+		private int[] prevX1 = new int[16], prevX2 = new int[16], prevZ1 = new int[16];
+		private int prevCount = 0;
+		private int prevZEnd;
+		// Rectangles ending on the current row
+		private int[] curX1 = new int[16], curX2 = new int[16], curZ1 = new int[16];
+		private int curCount = 0;
+		private int curZStart, curZEnd;
+		/**
+		 * Index of the next rectangle from the previous row to look at.
+		 */
+		private int prevIndex;
+		/**
+		 * Is the current row directly after the previous row?
+		 */
+		private boolean adjacent;
+
+		public void startRow(int zStart, int zEnd) {
+			curZStart = zStart;
+			curZEnd = zEnd;
+			curCount = 0;
+			prevIndex = 0;
+			adjacent = prevCount > 0 && (long) prevZEnd + 1 == (long) zStart;
+		}
+
+		public void addRun(int x1, int x2, String tag,
+				List<ProtectionRange> output) {
+			int z1 = curZStart;
+			if (adjacent) {
+				// Rectangles before this run can't be extended anymore.
+				while (prevIndex < prevCount && prevX1[prevIndex] < x1) {
+					emitPrev(prevIndex, tag, output);
+					prevIndex++;
+				}
+				if (prevIndex < prevCount && prevX1[prevIndex] == x1
+						&& prevX2[prevIndex] == x2) {
+					z1 = prevZ1[prevIndex];
+					prevIndex++;
+				}
+			}
+
+			if (curCount == curX1.length) {
+				curX1 = Arrays.copyOf(curX1, curCount * 2);
+				curX2 = Arrays.copyOf(curX2, curCount * 2);
+				curZ1 = Arrays.copyOf(curZ1, curCount * 2);
+			}
+			curX1[curCount] = x1;
+			curX2[curCount] = x2;
+			curZ1[curCount] = z1;
+			curCount++;
+		}
+
+		public void endRow(String tag, List<ProtectionRange> output) {
+			// Anything from the previous row that wasn't extended is done.
+			int start = (adjacent ? prevIndex : 0);
+			for (int i = start; i < prevCount; i++) {
+				emitPrev(i, tag, output);
+			}
+
+			int[] temp;
+			temp = prevX1; prevX1 = curX1; curX1 = temp;
+			temp = prevX2; prevX2 = curX2; curX2 = temp;
+			temp = prevZ1; prevZ1 = curZ1; curZ1 = temp;
+			prevCount = curCount;
+			prevZEnd = curZEnd;
+			curCount = 0;
+		}
+
+		public void finish(String tag, List<ProtectionRange> output) {
+			for (int i = 0; i < prevCount; i++) {
+				emitPrev(i, tag, output);
+			}
+			prevCount = 0;
+		}
+
+		private void emitPrev(int index, String tag,
+				List<ProtectionRange> output) {
+			output.add(new ProtectionRange(tag, prevX1[index], prevZ1[index],
+					prevX2[index], prevZEnd));
+		}
+	}
+}
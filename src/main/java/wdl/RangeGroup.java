@@ -1,11 +1,8 @@
 package wdl;
 
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 
 import org.bukkit.entity.Player;
 
@@ -14,8 +11,7 @@ import wdl.range.IRangeGroupType;
 import wdl.range.IRangeProducer;
 import wdl.range.ProtectionRange;
 
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.Multimap;
+import com.google.common.collect.ImmutableList;
 
 /**
  * Group of {@link ProtectionRange}s, which can be edited and will send
@@ -82,8 +78,8 @@ class RangeGroup implements IRangeGroup {
 			}
 		}
 		
-		plugin.queuePacket(player, WDLPackets.createWDLPacket5(groupName,
-				false, compactRanges(ranges)));
+		plugin.queueRangeOperation(player, RangeOperation.add(groupName,
+				compactRanges(ranges)));
 	}
 	
 	@Override
@@ -106,8 +102,8 @@ class RangeGroup implements IRangeGroup {
 			}
 		}
 		
-		plugin.queuePacket(player, WDLPackets.createWDLPacket5(groupName,
-				false, compactRanges(ranges)));
+		plugin.queueRangeOperation(player, RangeOperation.add(groupName,
+				compactRanges(ranges)));
 	}
 
 	@Override
@@ -127,7 +123,7 @@ class RangeGroup implements IRangeGroup {
 			}
 		}
 		
-		plugin.queuePacket(player, WDLPackets.createWDLPacket5(groupName, true,
+		plugin.queueRangeOperation(player, RangeOperation.set(groupName,
 				compactRanges(ranges)));
 	}
 	
@@ -151,7 +147,7 @@ class RangeGroup implements IRangeGroup {
 			}
 		}
 		
-		plugin.queuePacket(player, WDLPackets.createWDLPacket5(groupName, true,
+		plugin.queueRangeOperation(player, RangeOperation.set(groupName,
 				compactRanges(ranges)));
 	}
 
@@ -175,8 +171,8 @@ class RangeGroup implements IRangeGroup {
 			}
 		}
 		
-		plugin.queuePacket(player,
-				WDLPackets.createWDLPacket6(groupName, Arrays.asList(tags)));
+		plugin.queueRangeOperation(player,
+				RangeOperation.removeTags(groupName, ImmutableList.copyOf(tags)));
 	}
 	
 	@Override
@@ -199,7 +195,8 @@ class RangeGroup implements IRangeGroup {
 			}
 		}
 		
-		plugin.queuePacket(player, WDLPackets.createWDLPacket6(groupName, tags));
+		plugin.queueRangeOperation(player, RangeOperation.removeTags(groupName,
+				ImmutableList.copyOf(tags)));
 	}
 
 	@Override
@@ -228,7 +225,7 @@ class RangeGroup implements IRangeGroup {
 			}
 		}
 		
-		plugin.queuePacket(player, WDLPackets.createWDLPacket7(groupName, tag,
+		plugin.queueRangeOperation(player, RangeOperation.setTag(groupName, tag,
 				compactRanges(ranges)));
 	}
 	
@@ -258,7 +255,7 @@ class RangeGroup implements IRangeGroup {
 			}
 		}
 		
-		plugin.queuePacket(player, WDLPackets.createWDLPacket7(groupName, tag,
+		plugin.queueRangeOperation(player, RangeOperation.setTag(groupName, tag,
 				compactRanges(ranges)));
 	}
 
@@ -281,220 +278,18 @@ class RangeGroup implements IRangeGroup {
 	
 	/**
 	 * Convert the given list of ranges into an equivalent list with ranges
-	 * partially merged together.
+	 * merged together.
 	 */
 	private List<ProtectionRange> compactRanges(List<ProtectionRange> ranges) {
-		// Based off of http://stackoverflow.com/a/8072813/3991344
-		// Try to form horizontal or vertical rectangles.  Not perfect, but
-		// hopefully it's good enough in practice.
-		
-		/**
-		 * A single point, for use in calculations.
-		 */
-		class Point {
-			public Point(int x, int z) {
-				this.x = x;
-				this.z = z;
-			}
-			public Point(ProtectionRange range) {
-				assert range.x1 == range.x2;
-				assert range.z1 == range.z2;
-				
-				this.x = range.x1;
-				this.z = range.z1;
-			}
-			
-			public final int x;
-			public final int z;
-			
-			public Point oneLeft() {
-				return new Point(this.x + 1, this.z);
-			}
-			public Point oneDown() {
-				return new Point(this.x, this.z + 1);
-			}
-			
-			@Override
-			public int hashCode() {
-				final int prime = 1117; //Larger prime because x and z may be small.
-				int result = 1;
-				result = prime * result + x;
-				result = prime * result + z;
-				return result;
-			}
-			
-			@Override
-			public boolean equals(Object obj) {
-				if (this == obj) {
-					return true;
-				}
-				if (obj == null) {
-					return false;
-				}
-				if (!(obj instanceof Point)) {
-					return false;
-				}
-				Point other = (Point) obj;
-				if (x != other.x) {
-					return false;
-				}
-				if (z != other.z) {
-					return false;
-				}
-				return true;
-			}
-			
-			@Override
-			public String toString() {
-				return "Point [x=" + x + ", z=" + z + "]";
-			}
-		}
-		
-		Multimap<String, ProtectionRange> rangesByTag = HashMultimap.create();
-		
-		for (ProtectionRange range : ranges) {
-			rangesByTag.put(range.tag, range);
-		}
-		
-		List<ProtectionRange> finalRanges = new ArrayList<>();
-		
-		for (Map.Entry<String, Collection<ProtectionRange>> e : rangesByTag.asMap().entrySet()) {
-			String tag = e.getKey();
-			
-			List<ProtectionRange> newRanges = new ArrayList<>();
-			
-			int lowestX = Integer.MAX_VALUE;
-			int lowestZ = Integer.MAX_VALUE;
-			int highestX = Integer.MIN_VALUE;
-			int highestZ = Integer.MIN_VALUE;
-			
-			Map<Point, ProtectionRange> rangesByLocation = new HashMap<>();
-			
-			for (ProtectionRange range : e.getValue()) {
-				if (range.x1 == range.x2 && range.z1 == range.z2) {
-					if (range.x1 < lowestX) {
-						lowestX = range.x1;
-					}
-					if (range.z1 < lowestZ) {
-						lowestZ = range.z1;
-					}
-					if (range.x1 > highestX) {
-						highestX = range.x1;
-					}
-					if (range.z1 > highestZ) {
-						highestZ = range.z1;
-					}
-					// Will also overwrite other ranges if there's two at the
-					// same place, which is beneficial.
-					rangesByLocation.put(new Point(range), range);
-				} else {
-					newRanges.add(range);
-				}
-			}
-			
-			int rectStartX = 0, rectStartZ = 0;
-			int rectEndX = 0, rectEndZ = 0;
-			boolean inRectangle = false;
-			
-			// Horizontal groups first.
-			for (int z = lowestZ; z <= highestZ; z++) {
-				for (int x = lowestX; x <= highestX; x++) {
-					Point point = new Point(x, z);
-					
-					if (rangesByLocation.containsKey(point)) {
-						if (inRectangle) {
-							//Expand the rectangle.
-							rectEndX = x;
-							
-							//We've used up this point.
-							rangesByLocation.remove(point);
-						} else {
-							// Start a new rectangle if there
-							// is at least one more range.
-							if (rangesByLocation.containsKey(point.oneLeft())) {
-								inRectangle = true;
-								rectStartX = x;
-								rectStartZ = z;
-								rectEndX = x;
-								rectEndZ = z;
-								
-								//We've used up this point.
-								rangesByLocation.remove(point);
-							}
-						}
-					} else {
-						if (inRectangle) {
-							//Current rectangle finished - edge reached.
-							ProtectionRange range = new ProtectionRange(tag, rectStartX,
-									rectStartZ, rectEndX, rectEndZ);
-							newRanges.add(range);
-							inRectangle = false;
-						}
-					}
-				}
-				
-				if (inRectangle) {
-					//Current rectangle finished - line finished.
-					ProtectionRange range = new ProtectionRange(tag, rectStartX,
-							rectStartZ, rectEndX, rectEndZ);
-					newRanges.add(range);
-					inRectangle = false;
-				}
-			}
-			
-			// Now do vertical groups.
-			for (int x = lowestX; x <= highestX; x++) {
-				for (int z = lowestZ; z <= highestZ; z++) {
-					Point point = new Point(x, z);
-					
-					if (rangesByLocation.containsKey(point)) {
-						if (inRectangle) {
-							//Expand the rectangle.
-							rectEndZ = z;
-							
-							//We've used up this point.
-							rangesByLocation.remove(point);
-						} else {
-							// Start a new rectangle if there
-							// is at least one more range.
-							if (rangesByLocation.containsKey(point.oneDown())) {
-								inRectangle = true;
-								rectStartX = x;
-								rectStartZ = z;
-								rectEndX = x;
-								rectEndZ = z;
-								
-								//We've used up this point.
-								rangesByLocation.remove(point);
-							}
-						}
-					} else {
-						if (inRectangle) {
-							//Current rectangle finished - edge reached.
-							ProtectionRange range = new ProtectionRange(tag, rectStartX,
-									rectStartZ, rectEndX, rectEndZ);
-							newRanges.add(range);
-							inRectangle = false;
-						}
-					}
-				}
-				
-				if (inRectangle) {
-					//Current rectangle finished - line finished.
-					ProtectionRange range = new ProtectionRange(tag, rectStartX,
-							rectStartZ, rectEndX, rectEndZ);
-					newRanges.add(range);
-					inRectangle = false;
-				}
-			}
-			
-			//Add the remaining single ranges.
-			newRanges.addAll(rangesByLocation.values());
-			
-			finalRanges.addAll(newRanges);
+		return plugin.getRangeCompactor().compact(ranges);
+	}
+	
+	@Override
+	public void resyncRanges() {
+		if (this.isDisposed) {
+			throw new IllegalStateException("This RangeGroup has been disposed!  You shouldn't be using it anymore (or even have an instance!)");
 		}
-		
-		return finalRanges;
+		plugin.resyncRangeGroups(Collections.singleton(groupName));
 	}
 	
 	/**
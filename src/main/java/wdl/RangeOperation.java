@@ -0,0 +1,205 @@
+package wdl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import wdl.range.ProtectionRange;
+
+/**
+ * A single change to the ranges in a range group, as sent with packets #5,
+ * #6, and #7.
+ */
+final class RangeOperation {
+	/**
+	 * The different kinds of changes.
+	 */
+	static enum Type {
+		/**
+		 * Adds ranges to the group (packet #5, not replacing).
+		 */
+		ADD,
+		/**
+		 * Replaces all of the ranges in the group (packet #5, replacing).
+		 */
+		SET,
+		/**
+		 * Removes all ranges with the given tags (packet #6).
+		 */
+		REMOVE_TAGS,
+		/**
+		 * Replaces all of the ranges with the given tag (packet #7).
+		 */
+		SET_TAG
+	}
+
+	/**
+	 * The name of the group that is changed.
+	 */
+	public final String group;
+	public final Type type;
+	/**
+	 * The ranges to add or set.  Empty for {@link Type#REMOVE_TAGS}.
+	 */
+	public final List<ProtectionRange> ranges;
+	/**
+	 * The tags to remove.  Only used for {@link Type#REMOVE_TAGS}.
+	 */
+	public final List<String> tags;
+	/**
+	 * The tag to replace.  Only used for {@link Type#SET_TAG}.
+	 */
+	public final String tag;
+
+	private RangeOperation(String group, Type type,
+			List<ProtectionRange> ranges, List<String> tags, String tag) {
+		this.group = group;
+		this.type = type;
+		this.ranges = ranges;
+		this.tags = tags;
+		this.tag = tag;
+	}
+
+	public static RangeOperation add(String group, List<ProtectionRange> ranges) {
+		return new RangeOperation(group, Type.ADD, ranges, null, null);
+	}
+
+	public static RangeOperation set(String group, List<ProtectionRange> ranges) {
+		return new RangeOperation(group, Type.SET, ranges, null, null);
+	}
+
+	public static RangeOperation removeTags(String group, List<String> tags) {
+		return new RangeOperation(group, Type.REMOVE_TAGS,
+				Collections.<ProtectionRange> emptyList(), tags, null);
+	}
+
+	public static RangeOperation setTag(String group, String tag,
+			List<ProtectionRange> ranges) {
+		return new RangeOperation(group, Type.SET_TAG, ranges, null, tag);
+	}
+
+	/**
+	 * Merges operations on a single group into as few operations as possible,
+	 * with the same result as applying them in order.  The result is either a
+	 * single {@link Type#SET}, or removing tags followed by a single
+	 * {@link Type#ADD} (where a single tag being replaced is one
+	 * {@link Type#SET_TAG}):
+	 * <ul>
+	 * <li>A set discards everything before it.</li>
+	 * <li>Adds are merged into the set or add before them.</li>
+	 * <li>Removing tags removes ranges with them from the set or add before
+	 * it, and (if there is no set) is done before the add.</li>
+	 * <li>Setting a tag's ranges is removing the tag and then adding them,
+	 * as all of the ranges have that tag.</li>
+	 * </ul>
+	 *
+	 * @param operations
+	 *            The operations, in order.  All must be on the same group.
+	 * @return The merged operations, in order.
+	 */
+	public static List<RangeOperation> coalesce(List<RangeOperation> operations) {
+		if (operations.size() <= 1) {
+			return operations;
+		}
+		String group = operations.get(0).group;
+		boolean replace = false;
+		List<ProtectionRange> ranges = new ArrayList<>();
+		Set<String> removedTags = new LinkedHashSet<>();
+
+		for (RangeOperation operation : operations) {
+			if (!operation.group.equals(group)) {
+				throw new IllegalArgumentException("Operations on different "
+						+ "groups (" + group + " and " + operation.group
+						+ ") can't be merged!");
+			}
+			switch (operation.type) {
+			case SET:
+				replace = true;
+				ranges.clear();
+				removedTags.clear();
+				ranges.addAll(operation.ranges);
+				break;
+			case ADD:
+				ranges.addAll(operation.ranges);
+				break;
+			case REMOVE_TAGS:
+				removeTags(ranges, operation.tags);
+				if (!replace) {
+					removedTags.addAll(operation.tags);
+				}
+				break;
+			case SET_TAG:
+				removeTags(ranges, Collections.singletonList(operation.tag));
+				if (!replace) {
+					removedTags.add(operation.tag);
+				}
+				ranges.addAll(operation.ranges);
+				break;
+			}
+		}
+
+		List<RangeOperation> result = new ArrayList<>(2);
+		if (replace) {
+			result.add(set(group, ranges));
+		} else if (removedTags.size() == 1 && !ranges.isEmpty()
+				&& hasOnlyTag(ranges, removedTags.iterator().next())) {
+			result.add(setTag(group, removedTags.iterator().next(), ranges));
+		} else {
+			if (!removedTags.isEmpty()) {
+				result.add(removeTags(group, new ArrayList<>(removedTags)));
+			}
+			if (!ranges.isEmpty()) {
+				result.add(add(group, ranges));
+			}
+		}
+		return result;
+	}
+
+	private static void removeTags(List<ProtectionRange> ranges,
+			List<String> tags) {
+		if (ranges.isEmpty()) {
+			return;
+		}
+		Set<String> tagSet = new HashSet<>(tags);
+		int kept = 0;
+		for (int i = 0; i < ranges.size(); i++) {
+			ProtectionRange range = ranges.get(i);
+			if (!tagSet.contains(range.tag)) {
+				ranges.set(kept++, range);
+			}
+		}
+		ranges.subList(kept, ranges.size()).clear();
+	}
+
+	private static boolean hasOnlyTag(List<ProtectionRange> ranges, String tag) {
+		for (ProtectionRange range : ranges) {
+			if (!range.tag.equals(tag)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Creates the packets that perform this operation on the client.  This is
+	 * usually a single packet, but large operations are split up.
+	 */
+	public List<byte[]> createPackets() {
+		switch (type) {
+		case ADD: return WDLPackets.createSplitWDLPacket5(group, false, ranges);
+		case SET: return WDLPackets.createSplitWDLPacket5(group, true, ranges);
+		case REMOVE_TAGS: return WDLPackets.createSplitWDLPacket6(group, tags);
+		case SET_TAG: return WDLPackets.createSplitWDLPacket7(group, tag, ranges);
+		default: throw new AssertionError("Unknown type " + type);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return type + " on " + group + " (tag " + tag + ", tags " + tags
+				+ ", " + (ranges != null ? ranges.size() : 0) + " ranges)";
+	}
+}
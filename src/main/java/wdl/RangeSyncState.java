@@ -0,0 +1,275 @@
+package wdl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import wdl.range.ProtectionRange;
+
+import com.google.common.collect.HashMultiset;
+
+/**
+ * Mirror of the ranges that a single player's client currently has, built
+ * from the range packets that have been sent to it.  This is used so that
+ * only the changes need to be sent when the player is updated, instead of
+ * resending every range with packet #4.
+ * <br/>
+ * Operations must be applied in the same order that their packets are sent.
+ * The client forgets its ranges whenever it sends WDL's init packet (which
+ * it does again when changing worlds), so a new state is used after each
+ * one.
+ */
+class RangeSyncState {
+	/**
+	 * The ranges that the client has, by group and then by tag.  Tags without
+	 * any ranges are not present.
+	 */
+	private final Map<String, Map<String, List<ProtectionRange>>> groups = new HashMap<>();
+	/**
+	 * Has packet #4 been sent yet?  Until then, the client's ranges are not
+	 * known.
+	 */
+	private boolean initialized = false;
+
+	/**
+	 * Creates the packets needed to bring the client from its current ranges
+	 * to the given ones, and records the given ranges as the client's.
+	 * <br/>
+	 * The first call creates a full packet #4; later calls create the minimal
+	 * set of packets #5, #6, and #7.  Packets that are too large are split.
+	 *
+	 * @param ranges
+	 *            The ranges that the client should have, by group.
+	 * @return The packets to send, in order. May be empty.
+	 */
+	public List<byte[]> createUpdatePackets(
+			Map<String, List<ProtectionRange>> ranges) {
+		if (!initialized) {
+			groups.clear();
+			for (Map.Entry<String, List<ProtectionRange>> e : ranges.entrySet()) {
+				groups.put(e.getKey(), byTag(e.getValue()));
+			}
+			initialized = true;
+			return WDLPackets.createSplitWDLPacket4(ranges);
+		}
+
+		List<byte[]> packets = new ArrayList<>();
+		for (Map.Entry<String, List<ProtectionRange>> e : ranges.entrySet()) {
+			addGroupUpdate(e.getKey(), e.getValue(), packets);
+		}
+
+		// Groups that no longer exist (EG after a reload) can't be removed,
+		// but they can be emptied.
+		Iterator<Map.Entry<String, Map<String, List<ProtectionRange>>>> itr =
+				groups.entrySet().iterator();
+		while (itr.hasNext()) {
+			Map.Entry<String, Map<String, List<ProtectionRange>>> e = itr.next();
+			if (!ranges.containsKey(e.getKey())) {
+				if (!e.getValue().isEmpty()) {
+					packets.add(WDLPackets.createWDLPacket5(e.getKey(), true,
+							Collections.<ProtectionRange> emptyList()));
+				}
+				itr.remove();
+			}
+		}
+
+		return packets;
+	}
+
+	/**
+	 * Creates the packets needed to update only some of the client's groups,
+	 * leaving the others alone, and records the given ranges as the client's.
+	 * Nothing is created if the client hasn't been sent its initial ranges
+	 * yet, as those will include the changes.
+	 *
+	 * @param ranges
+	 *            The ranges that the client should have, for each of the
+	 *            given groups that still exists.
+	 * @param groupNames
+	 *            The groups to update.  Groups that are not in
+	 *            <code>ranges</code> are emptied.
+	 * @return The packets to send, in order. May be empty.
+	 */
+	public List<byte[]> createGroupUpdatePackets(
+			Map<String, List<ProtectionRange>> ranges,
+			Collection<String> groupNames) {
+		List<byte[]> packets = new ArrayList<>();
+		if (!initialized) {
+			return packets;
+		}
+
+		for (String group : groupNames) {
+			List<ProtectionRange> wanted = ranges.get(group);
+			if (wanted != null) {
+				addGroupUpdate(group, wanted, packets);
+			} else {
+				Map<String, List<ProtectionRange>> current = groups.remove(group);
+				if (current != null && !current.isEmpty()) {
+					packets.add(WDLPackets.createWDLPacket5(group, true,
+							Collections.<ProtectionRange> emptyList()));
+				}
+			}
+		}
+		return packets;
+	}
+
+	/**
+	 * Records the effects of an operation that was sent to the client.
+	 */
+	public void apply(RangeOperation operation) {
+		if (!initialized) {
+			// The initial packet #4 will replace everything anyways.
+			return;
+		}
+
+		Map<String, List<ProtectionRange>> tags = groups.get(operation.group);
+		if (tags == null) {
+			tags = new HashMap<>();
+			groups.put(operation.group, tags);
+		}
+
+		switch (operation.type) {
+		case SET:
+			tags.clear();
+			// Fall through
+		case ADD:
+			for (ProtectionRange range : operation.ranges) {
+				List<ProtectionRange> list = tags.get(range.tag);
+				if (list == null) {
+					list = new ArrayList<>();
+					tags.put(range.tag, list);
+				}
+				list.add(range);
+			}
+			break;
+		case REMOVE_TAGS:
+			for (String tag : operation.tags) {
+				tags.remove(tag);
+			}
+			break;
+		case SET_TAG:
+			if (operation.ranges.isEmpty()) {
+				tags.remove(operation.tag);
+			} else {
+				tags.put(operation.tag, new ArrayList<>(operation.ranges));
+			}
+			break;
+		}
+	}
+
+	/**
+	 * Adds the packets needed to bring a single group to the given ranges to
+	 * the given list, and records the ranges as the client's.
+	 */
+	private void addGroupUpdate(String group, List<ProtectionRange> ranges,
+			List<byte[]> packets) {
+		Map<String, List<ProtectionRange>> wanted = byTag(ranges);
+		Map<String, List<ProtectionRange>> current = groups.get(group);
+
+		if (current == null) {
+			packets.addAll(WDLPackets.createSplitWDLPacket5(group, true,
+					ranges));
+		} else {
+			addGroupChanges(group, current, wanted, ranges, packets);
+		}
+		groups.put(group, wanted);
+	}
+
+	/**
+	 * Adds the packets needed to change a single group to the given list.
+	 *
+	 * @param group
+	 *            The name of the group.
+	 * @param current
+	 *            The ranges that the client has, by tag.
+	 * @param wanted
+	 *            The ranges that the client should have, by tag.
+	 * @param allWanted
+	 *            All of the ranges the client should have.
+	 * @param packets
+	 *            The list to add packets to.
+	 */
+	private void addGroupChanges(String group,
+			Map<String, List<ProtectionRange>> current,
+			Map<String, List<ProtectionRange>> wanted,
+			List<ProtectionRange> allWanted, List<byte[]> packets) {
+		List<String> removedTags = new ArrayList<>();
+		List<String> changedTags = new ArrayList<>();
+		List<ProtectionRange> addedRanges = new ArrayList<>();
+		boolean anyUnchanged = false;
+
+		for (Map.Entry<String, List<ProtectionRange>> e : current.entrySet()) {
+			List<ProtectionRange> wantedRanges = wanted.get(e.getKey());
+			if (wantedRanges == null) {
+				removedTags.add(e.getKey());
+			} else if (isSameRanges(e.getValue(), wantedRanges)) {
+				anyUnchanged = true;
+			} else {
+				changedTags.add(e.getKey());
+			}
+		}
+		for (Map.Entry<String, List<ProtectionRange>> e : wanted.entrySet()) {
+			if (!current.containsKey(e.getKey())) {
+				addedRanges.addAll(e.getValue());
+			}
+		}
+
+		if (removedTags.isEmpty() && changedTags.isEmpty()
+				&& addedRanges.isEmpty()) {
+			return;
+		}
+		if (!anyUnchanged) {
+			// Nothing can be kept, so a single replacement is smallest.
+			packets.addAll(WDLPackets.createSplitWDLPacket5(group, true,
+					allWanted));
+			return;
+		}
+
+		if (!removedTags.isEmpty()) {
+			packets.addAll(WDLPackets.createSplitWDLPacket6(group, removedTags));
+		}
+		for (String tag : changedTags) {
+			packets.addAll(WDLPackets.createSplitWDLPacket7(group, tag,
+					wanted.get(tag)));
+		}
+		if (!addedRanges.isEmpty()) {
+			packets.addAll(WDLPackets.createSplitWDLPacket5(group, false,
+					addedRanges));
+		}
+	}
+
+	/**
+	 * Checks if the two lists contain the same ranges, ignoring order.
+	 */
+	private static boolean isSameRanges(List<ProtectionRange> a,
+			List<ProtectionRange> b) {
+		if (a.size() != b.size()) {
+			return false;
+		}
+		if (a.equals(b)) {
+			return true;
+		}
+		return HashMultiset.create(a).equals(HashMultiset.create(b));
+	}
+
+	/**
+	 * Splits the given ranges up by their tags.
+	 */
+	private static Map<String, List<ProtectionRange>> byTag(
+			List<ProtectionRange> ranges) {
+		Map<String, List<ProtectionRange>> tags = new HashMap<>();
+		for (ProtectionRange range : ranges) {
+			List<ProtectionRange> list = tags.get(range.tag);
+			if (list == null) {
+				list = new ArrayList<>();
+				tags.put(range.tag, list);
+			}
+			list.add(range);
+		}
+		return tags;
+	}
+}
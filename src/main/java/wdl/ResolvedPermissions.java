@@ -0,0 +1,66 @@
+package wdl;
+
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+
+/**
+ * All of the permissions of a single player, resolved at one point in time.
+ * Created by {@link PermissionHandler#getResolvedPermissions(Player)} so that
+ * each permission only needs to be checked once per update.
+ * <br/>
+ * This class is immutable.
+ */
+final class ResolvedPermissions {
+	/**
+	 * The world the player was in; the permissions depend on it.
+	 */
+	public final World world;
+	/**
+	 * When these permissions were resolved, from
+	 * {@link System#currentTimeMillis()}.
+	 */
+	public final long resolvedAt;
+
+	public final boolean canDownloadInGeneral;
+	public final int saveRadius;
+	public final boolean canCacheChunks;
+	public final boolean canSaveEntities;
+	public final boolean canSaveTileEntities;
+	public final boolean canSaveContainers;
+	public final boolean canDoNewThings;
+	public final boolean sendEntityRanges;
+
+	ResolvedPermissions(PermissionHandler handler, Player player, long resolvedAt) {
+		this(player.getWorld(), resolvedAt,
+				handler.getCanDownloadInGeneral(player),
+				handler.getSaveRadius(player),
+				handler.getCanCacheChunks(player),
+				handler.getCanSaveEntities(player),
+				handler.getCanSaveTileEntities(player),
+				handler.getCanSaveContainers(player),
+				handler.getCanDoNewThings(player),
+				handler.getSendEntityRanges(player));
+	}
+
+	/**
+	 * Creates permissions with the given values, without checking them for
+	 * a player (used by benchmarks).
+	 */
+	ResolvedPermissions(World world, long resolvedAt,
+			boolean canDownloadInGeneral, int saveRadius,
+			boolean canCacheChunks, boolean canSaveEntities,
+			boolean canSaveTileEntities, boolean canSaveContainers,
+			boolean canDoNewThings, boolean sendEntityRanges) {
+		this.world = world;
+		this.resolvedAt = resolvedAt;
+
+		this.canDownloadInGeneral = canDownloadInGeneral;
+		this.saveRadius = saveRadius;
+		this.canCacheChunks = canCacheChunks;
+		this.canSaveEntities = canSaveEntities;
+		this.canSaveTileEntities = canSaveTileEntities;
+		this.canSaveContainers = canSaveContainers;
+		this.canDoNewThings = canDoNewThings;
+		this.sendEntityRanges = sendEntityRanges;
+	}
+}
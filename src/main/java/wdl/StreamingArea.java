@@ -0,0 +1,112 @@
+package wdl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bukkit.Location;
+
+import wdl.range.ProtectionRange;
+
+/**
+ * The area around a player that ranges are sent for when
+ * <code>wdl.rangeStreamingRadius</code> is set.  The area is centered on the
+ * region (32 by 32 chunks) that the player is in rather than on the player
+ * themself, so that it only changes when they move into another region.
+ * <br/>
+ * This class is immutable.
+ */
+final class StreamingArea {
+	/**
+	 * Number of bits to shift a chunk coordinate by to get its region.
+	 */
+	private static final int REGION_SHIFT = 5;
+	/**
+	 * Number of bits to shift a block coordinate by to get its region.
+	 */
+	private static final int BLOCK_REGION_SHIFT = REGION_SHIFT + 4;
+
+	/**
+	 * Bounds of the area, in chunk coordinates (inclusive).
+	 */
+	private final int minX, minZ, maxX, maxZ;
+
+	private StreamingArea(int minX, int minZ, int maxX, int maxZ) {
+		this.minX = minX;
+		this.minZ = minZ;
+		this.maxX = maxX;
+		this.maxZ = maxZ;
+	}
+
+	/**
+	 * Gets the area around the region that the given location is in.
+	 *
+	 * @param location
+	 *            The player's location.
+	 * @param radius
+	 *            The number of chunks around the region to include.  Must not
+	 *            be negative.
+	 */
+	public static StreamingArea around(Location location, int radius) {
+		if (radius < 0) {
+			throw new IllegalArgumentException("radius must not be negative!"
+					+ "  (was " + radius + ")");
+		}
+		int regionX = location.getBlockX() >> BLOCK_REGION_SHIFT;
+		int regionZ = location.getBlockZ() >> BLOCK_REGION_SHIFT;
+		// Computed as longs, so that huge radii don't overflow
+		long minX = ((long) regionX << REGION_SHIFT) - radius;
+		long minZ = ((long) regionZ << REGION_SHIFT) - radius;
+		long maxX = ((long) (regionX + 1) << REGION_SHIFT) - 1 + radius;
+		long maxZ = ((long) (regionZ + 1) << REGION_SHIFT) - 1 + radius;
+		return new StreamingArea(clamp(minX), clamp(minZ), clamp(maxX),
+				clamp(maxZ));
+	}
+
+	/**
+	 * Checks if the two locations are in the same world and region, in which
+	 * case the area around them is the same.
+	 */
+	public static boolean isSameRegion(Location a, Location b) {
+		return a.getWorld() == b.getWorld()
+				&& (a.getBlockX() >> BLOCK_REGION_SHIFT) == (b.getBlockX() >> BLOCK_REGION_SHIFT)
+				&& (a.getBlockZ() >> BLOCK_REGION_SHIFT) == (b.getBlockZ() >> BLOCK_REGION_SHIFT);
+	}
+
+	/**
+	 * Checks if any part of the given range is in this area.
+	 */
+	public boolean intersects(ProtectionRange range) {
+		return Math.min(range.x1, range.x2) <= maxX
+				&& Math.max(range.x1, range.x2) >= minX
+				&& Math.min(range.z1, range.z2) <= maxZ
+				&& Math.max(range.z1, range.z2) >= minZ;
+	}
+
+	/**
+	 * Gets the ranges in the given list that are at least partly in this
+	 * area.  If all of them are, the given list itself is returned.
+	 */
+	public List<ProtectionRange> filter(List<ProtectionRange> ranges) {
+		int i = 0;
+		while (i < ranges.size() && intersects(ranges.get(i))) {
+			i++;
+		}
+		if (i == ranges.size()) {
+			return ranges;
+		}
+
+		List<ProtectionRange> result = new ArrayList<>(ranges.subList(0, i));
+		for (i++; i < ranges.size(); i++) {
+			ProtectionRange range = ranges.get(i);
+			if (intersects(range)) {
+				result.add(range);
+			}
+		}
+		return result;
+	}
+
+	private static int clamp(long value) {
+		return (int) Math.max(Integer.MIN_VALUE,
+				Math.min(Integer.MAX_VALUE, value));
+	}
+}
@@ -5,10 +5,14 @@ import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
 import java.util.logging.Level;
 
 import org.bukkit.Bukkit;
@@ -17,33 +21,36 @@ import org.bukkit.World;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandSender;
 import org.bukkit.configuration.ConfigurationSection;
-import org.bukkit.configuration.file.YamlConfiguration;
-import org.bukkit.entity.Ambient;
-import org.bukkit.entity.Creature;
-import org.bukkit.entity.EntityType;
-import org.bukkit.entity.ExperienceOrb;
-import org.bukkit.entity.Item;
-import org.bukkit.entity.ItemFrame;
-import org.bukkit.entity.Monster;
-import org.bukkit.entity.Painting;
+import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.entity.Player;
-import org.bukkit.entity.Slime;
 import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerChangedWorldEvent;
+import org.bukkit.event.player.PlayerMoveEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.event.player.PlayerRespawnEvent;
+import org.bukkit.event.player.PlayerTeleportEvent;
+import org.bukkit.event.world.WorldLoadEvent;
+import org.bukkit.event.world.WorldUnloadEvent;
 import org.bukkit.plugin.java.JavaPlugin;
 import org.bukkit.plugin.messaging.PluginMessageListener;
 import org.mcstats.Metrics;
 import org.mcstats.Metrics.Graph;
 import org.mcstats.Metrics.Plotter;
 
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 
 import wdl.range.BlockRangeGroupType;
+import wdl.range.ChunkBitmapRangeGroupType;
 import wdl.range.IRangeGroup;
 import wdl.range.IRangeGroupType;
 import wdl.range.ProtectionRange;
+import wdl.range.TimingWheel;
 import wdl.range.ChunkRangeGroupType;
 import wdl.range.IRangeProducer;
 import wdl.range.TransientRangeProducer;
@@ -93,9 +100,24 @@ public class WDLCompanion extends JavaPlugin implements Listener, PluginMessageL
 	 */
 	private Map<String, Map<String, Integer>> worldEntityRanges 
 			= new HashMap<>();
+	/**
+	 * Cached packet #2 for each world, created from
+	 * {@link #worldEntityRanges}.  Must be cleared whenever it is.
+	 */
+	private Map<String, byte[]> worldEntityRangePackets = new HashMap<>();
+	/**
+	 * The entity tracking ranges from spigot.yml, loaded when the plugin is
+	 * enabled or the config is reloaded.
+	 */
+	private EntityTrackingRanges entityTrackingRanges;
 	
 	public PermissionHandler permissionHandler;
 	public RequestManager requestManager;
+	/**
+	 * Timing wheel used for everything that expires, such as accepted
+	 * permission requests and their ranges.
+	 */
+	public TimingWheel expiryWheel;
 	
 	/**
 	 * A transient range producer to store ranges from accepted permission
@@ -111,6 +133,66 @@ public class WDLCompanion extends JavaPlugin implements Listener, PluginMessageL
 	 * Map of all registered {@link IRangeProducer}s by their IDs.
 	 */
 	private final Map<String, IRangeProducer> rangeProducers = new HashMap<>();
+	/**
+	 * The settings that each chunk override's producer in
+	 * {@link #rangeProducers} was created from, as returned by
+	 * {@link #getSettingValues(ConfigurationSection)}.
+	 */
+	private final Map<String, Map<String, Object>> rangeProducerSettings = new HashMap<>();
+	/**
+	 * Index of the ranges from {@link #rangeProducers} in each world.
+	 * Recreated whenever they change.
+	 */
+	private WorldRangeIndex rangeIndex = new WorldRangeIndex(
+			Collections.<String, IRangeProducer> emptyMap());
+	/**
+	 * Cache of the permission packets sent by {@link #updatePlayer(Player)}.
+	 */
+	private final PermissionPacketCache packetCache = new PermissionPacketCache();
+	/**
+	 * The ranges that each player's client currently has.  Only used on the
+	 * main thread.
+	 */
+	private final Map<UUID, RangeSyncState> rangeSyncStates = new HashMap<>();
+	/**
+	 * Sends packets and range operations, spread over multiple ticks if
+	 * there are too many for one.
+	 */
+	private final PacketFlusher packetFlusher = new PacketFlusher(this);
+	/**
+	 * Builds the packets for updating players off of the main thread.
+	 */
+	private final PacketBuilder packetBuilder = packetFlusher.getBuilder();
+	/**
+	 * The update of players that is in progress, or the last one if none is.
+	 */
+	private PlayerUpdateTask playerUpdate;
+	/**
+	 * Compactor used by {@link RangeGroup}s, created from the config.
+	 */
+	private volatile RangeCompactor rangeCompactor = new RangeCompactor(
+			RangeCompactor.Mode.STRIPS, 5);
+	/**
+	 * The number of chunks around a player's region that ranges are sent
+	 * for, or -1 if all ranges are sent.  From the config.
+	 */
+	private int rangeStreamingRadius = -1;
+	/**
+	 * The compiled settings for each loaded world.  Cleared when the config
+	 * is reloaded.
+	 */
+	private final Map<World, WorldSettings> worldSettings = new IdentityHashMap<>();
+	/**
+	 * The config as last changed on disk, if it was loaded by the
+	 * {@link #configWatcher}; otherwise <code>null</code>, and the config
+	 * loaded by {@link JavaPlugin} is used.
+	 */
+	private FileConfiguration changedConfig;
+	/**
+	 * Watcher for changes to config.yml and spigot.yml, or <code>null</code>
+	 * if <code>wdl.watchConfigFiles</code> is false.
+	 */
+	private ConfigWatcher configWatcher;
 	
 	@Override
 	public void onLoad() {
@@ -122,6 +204,20 @@ public class WDLCompanion extends JavaPlugin implements Listener, PluginMessageL
 		}
 	}
 	
+	@Override
+	public FileConfiguration getConfig() {
+		if (changedConfig != null) {
+			return changedConfig;
+		}
+		return super.getConfig();
+	}
+	
+	@Override
+	public void reloadConfig() {
+		changedConfig = null;
+		super.reloadConfig();
+	}
+	
 	@Override
 	public void onEnable() {
 		this.saveDefaultConfig();
@@ -145,9 +241,12 @@ public class WDLCompanion extends JavaPlugin implements Listener, PluginMessageL
 		}
 
 		this.getServer().getPluginManager().registerEvents(this, this);
+		this.packetFlusher.start();
 		
 		this.permissionHandler = new PermissionHandler(this);
+		this.expiryWheel = new TimingWheel(this);
 		this.requestManager = new RequestManager(this);
+		loadEntityTrackingRanges();
 		
 		try {
 			class ConfigBooleanPlotter extends Plotter {
@@ -226,6 +325,14 @@ public class WDLCompanion extends JavaPlugin implements Listener, PluginMessageL
 					.createGraph("sendEntityRanges");
 			sendEntityRangesGraph.addPlotter(new ConfigBooleanPlotter(
 					"wdl.sendEntityRanges"));
+			
+			Graph packetQueueGraph = metrics.createGraph("packetQueue");
+			packetQueueGraph.addPlotter(new Plotter("Queued packets") {
+				@Override
+				public int getValue() {
+					return packetFlusher.getQueuedPacketCount();
+				}
+			});
 
 			metrics.start();
 		} catch (IOException e) {
@@ -258,10 +365,17 @@ public class WDLCompanion extends JavaPlugin implements Listener, PluginMessageL
 				// We do this now so that the group types have registered.
 				ConfigValidation.validateConfig(getConfig(), getServer()
 						.getConsoleSender(), WDLCompanion.this);
+				compileWorldSettings();
+				updateConfigWatcher();
 				
 				// OK, now create the range producers.
 				createRangeProducers();
 				
+				// Restore requests from before the restart, now that the
+				// producer for their ranges exists.
+				requestManager.loadJournal(new File(getDataFolder(),
+						"requests.journal"));
+				
 				// And finally, we can update all players so that they get
 				// their ranges.
 				updateAllPlayers();
@@ -271,6 +385,19 @@ public class WDLCompanion extends JavaPlugin implements Listener, PluginMessageL
 
 	@Override
 	public void onDisable() {
+		if (configWatcher != null) {
+			configWatcher.stop();
+			configWatcher = null;
+		}
+		if (requestManager != null) {
+			requestManager.closeJournal();
+		}
+		if (playerUpdate != null) {
+			playerUpdate.cancel();
+			playerUpdate = null;
+		}
+		packetFlusher.stop();
+		
 		this.getServer().getMessenger()
 				.unregisterIncomingPluginChannel(this, INIT_CHANNEL_NAME_113);
 		this.getServer().getMessenger()
@@ -293,6 +420,7 @@ public class WDLCompanion extends JavaPlugin implements Listener, PluginMessageL
 	public void registerRanges(RangeGroupTypeRegistrationEvent event) {
 		event.addRegistration("BlockRange", new BlockRangeGroupType());
 		event.addRegistration("ChunkRange", new ChunkRangeGroupType());
+		event.addRegistration("ChunkBitmap", new ChunkBitmapRangeGroupType(this));
 	}
 	
 	@Override
@@ -399,11 +527,13 @@ public class WDLCompanion extends JavaPlugin implements Listener, PluginMessageL
 				
 				reloadConfig();
 				ConfigValidation.validateConfig(getConfig(), sender, this);
+				loadEntityTrackingRanges();
+				compileWorldSettings();
+				updateConfigWatcher();
 				createRangeProducers();
 				
-				updateAllPlayers();
-				
 				sender.sendMessage("aWDL configuration reloaded.");
+				updateAllPlayers(sender);
 				return true;
 			}
 			if (args[0].equalsIgnoreCase("update")) {
@@ -432,6 +562,7 @@ public class WDLCompanion extends JavaPlugin implements Listener, PluginMessageL
 					return true;
 				}
 				
+				permissionHandler.invalidate(player.getUniqueId());
 				updatePlayer(player);
 				sender.sendMessage("aUpdated " + player.getDisplayName() +
 						"'s WDL permissions.");
@@ -448,10 +579,8 @@ public class WDLCompanion extends JavaPlugin implements Listener, PluginMessageL
 					return false;
 				}
 				
-				int updatedCount = updateAllPlayers();
-				
-				sender.sendMessage("aUpdated the WDL permissions of " + 
-						updatedCount + " players.");
+				permissionHandler.invalidateAll();
+				updateAllPlayers(sender);
 				return true;
 			}
 			
@@ -658,38 +787,240 @@ public class WDLCompanion extends JavaPlugin implements Listener, PluginMessageL
 	}
 
 	/**
-	 * Update all online players.
+	 * Update all online players, a few players each tick.
 	 * 
-	 * @return Number of players updated.
+	 * @return The update, which can be used to check on or cancel it.
 	 */
-	public int updateAllPlayers() {
-		int updatedCount = 0;
+	public PlayerUpdateTask updateAllPlayers() {
+		return updateAllPlayers(null);
+	}
+	
+	/**
+	 * Update all online players, a few players each tick.
+	 * 
+	 * @param sender
+	 *            Who to tell how far along the update is.  May be null.
+	 * @return The update, which can be used to check on or cancel it.
+	 */
+	public PlayerUpdateTask updateAllPlayers(CommandSender sender) {
+		List<Player> players = new ArrayList<>();
 		for (Player player : getServer().getOnlinePlayers()) {
 			if (player.getListeningPluginChannels().contains(CONTROL_CHANNEL_NAME_113) ||
 					player.getListeningPluginChannels().contains(CONTROL_CHANNEL_NAME_112)) {
-				updatePlayer(player);
-				updatedCount++;
+				players.add(player);
 			}
 		}
 		
-		return updatedCount;
+		return startPlayerUpdate(players, sender);
+	}
+	
+	/**
+	 * Update all online players that are in one of the given worlds, a few
+	 * players each tick.
+	 * 
+	 * @param worldNames The names of the worlds.
+	 * @return The update.
+	 */
+	private PlayerUpdateTask updatePlayersInWorlds(Set<String> worldNames) {
+		List<Player> players = new ArrayList<>();
+		for (Player player : getServer().getOnlinePlayers()) {
+			if (!worldNames.contains(player.getWorld().getName())) {
+				continue;
+			}
+			if (player.getListeningPluginChannels().contains(CONTROL_CHANNEL_NAME_113) ||
+					player.getListeningPluginChannels().contains(CONTROL_CHANNEL_NAME_112)) {
+				players.add(player);
+			}
+		}
+		
+		return startPlayerUpdate(players, null);
+	}
+	
+	/**
+	 * Starts updating the given players, replacing the update that is in
+	 * progress (if any).  The players that the old update hadn't gotten to
+	 * yet are updated after the given ones.
+	 */
+	private PlayerUpdateTask startPlayerUpdate(List<Player> players,
+			CommandSender sender) {
+		if (playerUpdate != null) {
+			Set<UUID> ids = new HashSet<>();
+			for (Player player : players) {
+				ids.add(player.getUniqueId());
+			}
+			for (Player player : playerUpdate.supersede()) {
+				if (ids.add(player.getUniqueId())) {
+					players.add(player);
+				}
+			}
+		}
+		
+		int playersPerTick = getConfig().getInt("wdl.playersUpdatedPerTick",
+				10);
+		if (playersPerTick == 0) {
+			// Nobody would ever be updated; ConfigValidation warns about this
+			playersPerTick = 1;
+		}
+		playerUpdate = new PlayerUpdateTask(this, players, playersPerTick,
+				sender);
+		playerUpdate.start();
+		return playerUpdate;
+	}
+	
+	/**
+	 * Discards all cached permissions and permission packets.
+	 */
+	public void invalidatePermissionCache() {
+		packetCache.invalidate();
+		permissionHandler.invalidateAll();
+	}
+	
+	/**
+	 * Discards the cached permissions of a single player.  Called when a
+	 * permission request changes state; intended for internal use.
+	 */
+	public void invalidatePermissionCache(UUID playerId) {
+		permissionHandler.invalidate(playerId);
 	}
 	
 	/**
-	 * Sends a player all of the WDL settings.
+	 * Sends a player all of the WDL settings.  Only the ranges that changed
+	 * since the player was last sent ranges are sent.
 	 */
 	public void updatePlayer(Player player) {
 		byte[][] packets = createWDLPackets(player);
 		
-		String channel;
+		RangeSyncState syncState = rangeSyncStates.get(player.getUniqueId());
+		if (syncState == null) {
+			syncState = new RangeSyncState();
+			rangeSyncStates.put(player.getUniqueId(), syncState);
+		}
+		
+		packetBuilder.submit(new PacketBuilder.Snapshot(player,
+				getControlChannel(player), syncState, packets,
+				getRanges(player), null,
+				getStreamingArea(player.getLocation())));
+	}
+	
+	/**
+	 * Sends the changes to the given range groups to every player whose
+	 * ranges in them changed.  Players that haven't been sent their ranges
+	 * yet are skipped, as they will get them when they are first updated.
+	 * 
+	 * @param groupNames The names of the groups that changed.
+	 * @return Number of players whose changes are being built.
+	 */
+	int resyncRangeGroups(Set<String> groupNames) {
+		if (groupNames.isEmpty()) {
+			return 0;
+		}
+		int updatedCount = 0;
+		for (Player player : getServer().getOnlinePlayers()) {
+			RangeSyncState syncState = rangeSyncStates.get(player.getUniqueId());
+			if (syncState == null) {
+				continue;
+			}
+			
+			Map<String, List<ProtectionRange>> ranges = new HashMap<>();
+			for (String group : groupNames) {
+				IRangeProducer producer = rangeProducers.get(group);
+				if (producer != null) {
+					ranges.put(group, ImmutableList.copyOf(
+							producer.getInitialRanges(player)));
+				}
+			}
+			
+			packetBuilder.submit(new PacketBuilder.Snapshot(player,
+					getControlChannel(player), syncState, null, ranges,
+					new HashSet<>(groupNames),
+					getStreamingArea(player.getLocation())));
+			updatedCount++;
+		}
+		return updatedCount;
+	}
+	
+	/**
+	 * Gets the channel that WDL packets should be sent to the given player on.
+	 */
+	private String getControlChannel(Player player) {
 		if (player.getListeningPluginChannels().contains(CONTROL_CHANNEL_NAME_113)) {
-			channel = CONTROL_CHANNEL_NAME_113;
+			return CONTROL_CHANNEL_NAME_113;
 		} else {
-			channel = CONTROL_CHANNEL_NAME_112;
+			return CONTROL_CHANNEL_NAME_112;
+		}
+	}
+	
+	@EventHandler
+	public void onWorldLoad(WorldLoadEvent event) {
+		synchronized (worldSettings) {
+			worldSettings.put(event.getWorld(),
+					WorldSettings.compile(getConfig(), event.getWorld().getName()));
+		}
+	}
+	
+	@EventHandler
+	public void onWorldUnload(WorldUnloadEvent event) {
+		synchronized (worldSettings) {
+			worldSettings.remove(event.getWorld());
 		}
-		for (byte[] packet : packets) {
-			player.sendPluginMessage(this, channel, packet);
+	}
+	
+	@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+	public void onPlayerMove(PlayerMoveEvent event) {
+		streamRanges(event.getPlayer(), event.getFrom(), event.getTo());
+	}
+	
+	@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+	public void onPlayerTeleport(PlayerTeleportEvent event) {
+		streamRanges(event.getPlayer(), event.getFrom(), event.getTo());
+	}
+	
+	/**
+	 * Respawning doesn't fire a teleport event, and WDL doesn't send its init
+	 * packet again when respawning in the same world.
+	 */
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onPlayerRespawn(PlayerRespawnEvent event) {
+		streamRanges(event.getPlayer(), event.getPlayer().getLocation(),
+				event.getRespawnLocation());
+	}
+	
+	/**
+	 * If ranges are only sent near players, sends the player the ranges
+	 * that are near their new location and removes the ones that no longer
+	 * are, once they move into another region.
+	 */
+	private void streamRanges(Player player, Location from, Location to) {
+		if (rangeStreamingRadius < 0 || to == null
+				|| StreamingArea.isSameRegion(from, to)) {
+			return;
+		}
+		if (from.getWorld() != to.getWorld()) {
+			// WDL sends its init packet again when changing worlds, and
+			// is updated then
+			return;
 		}
+		RangeSyncState syncState = rangeSyncStates.get(player.getUniqueId());
+		if (syncState == null) {
+			// Not using WDL, or not sent any ranges yet
+			return;
+		}
+		
+		packetBuilder.submit(new PacketBuilder.Snapshot(player,
+				getControlChannel(player), syncState, null, getRanges(player),
+				null, getStreamingArea(to)));
+	}
+	
+	@EventHandler
+	public void onPlayerChangedWorld(PlayerChangedWorldEvent event) {
+		permissionHandler.invalidate(event.getPlayer().getUniqueId());
+	}
+	
+	@EventHandler
+	public void onPlayerQuit(PlayerQuitEvent event) {
+		// Their client forgets its ranges when they leave.
+		forgetRangeSyncState(event.getPlayer().getUniqueId());
+		permissionHandler.invalidate(event.getPlayer().getUniqueId());
 	}
 	
 	@Override
@@ -740,6 +1071,9 @@ public class WDLCompanion extends JavaPlugin implements Listener, PluginMessageL
 				}
 			}
 			
+			// WDL also sends this when changing worlds, and forgets its
+			// ranges when it does, so they all need to be sent again.
+			forgetRangeSyncState(player.getUniqueId());
 			updatePlayer(player);
 		}
 		
@@ -752,309 +1086,489 @@ public class WDLCompanion extends JavaPlugin implements Listener, PluginMessageL
 	}
 
 	/**
-	 * Recreate the {@link #rangeProducers} list.
+	 * Updates the {@link #rangeProducers} list to match the config.  Only the
+	 * producers for chunk overrides that were added, removed, or changed since
+	 * the last call are recreated; the producer for permission requests is
+	 * kept, along with the ranges it has given out.
+	 * 
+	 * @return The names of the groups whose producers were changed.
 	 */
-	private void createRangeProducers() {
-		for (IRangeProducer producer : rangeProducers.values()) {
-			try {
-				producer.getRangeGroup().dispose();
-			} catch (Exception e) {
-				getLogger().log(Level.WARNING,
-						"Failed to dispose of old IRangeProducer " + producer
-								+ "'s range group: ", e);
-			}
-			try {
-				producer.dispose();
-			} catch (Exception e) {
-				getLogger().log(Level.WARNING,
-						"Failed to dispose of old IRangeProducer " + producer
-								+ ": ", e);
-			}
-		}
+	private Set<String> createRangeProducers() {
+		packetCache.invalidate();
+		rangeCompactor = RangeCompactor.fromConfig(getConfig());
+		rangeStreamingRadius = getRangeStreamingRadius();
+		updatePacketBudget();
+		updatePacketBuilderThreads();
 		
-		rangeProducers.clear();
+		Map<String, Map<String, Object>> newSettings = new HashMap<>();
 		ConfigurationSection overrides = getConfig()
 				.getConfigurationSection("wdl.chunkOverrides");
 		if (overrides != null) {
-			Set<String> keys = overrides.getKeys(false);
-			for (String key : keys) {
-				ConfigurationSection override = overrides
-						.getConfigurationSection(key);
-				
-				IRangeGroupType<?> type = registeredRangeGroupTypes
-						.get(override.getString("type"));
-				
-				if (type == null) {
-					throw new AssertionError("Failed to get the group "
-							+ "type for ChunkOverride" + key + "!  "
-							+ "Tried to use " + override.getString("type")
-							+ ", but that was not found.");
-				}
-				
-				IRangeGroup group = new RangeGroup(key, this);
-				IRangeProducer producer = type.createRangeProducer(group,
-						override);
-				
-				rangeProducers.put(key, producer);
+			for (String key : overrides.getKeys(false)) {
+				newSettings.put(key, getSettingValues(overrides
+						.getConfigurationSection(key)));
+			}
+		}
+		
+		Set<String> changedGroups = new HashSet<>();
+		for (Map.Entry<String, Map<String, Object>> e : rangeProducerSettings
+				.entrySet()) {
+			if (!e.getValue().equals(newSettings.get(e.getKey()))) {
+				disposeRangeProducer(rangeProducers.remove(e.getKey()));
+				changedGroups.add(e.getKey());
 			}
 		}
+		rangeProducerSettings.keySet().retainAll(newSettings.keySet());
 		
-		// Set up the range producer used with permission requests.
-		RangeGroup requestRangeGroup = new RangeGroup("<Permission requests>", this);
-		this.requestRangeProducer = new TransientRangeProducer(requestRangeGroup, this);
-		rangeProducers.put("<Permission requests>", this.requestRangeProducer);
+		for (String key : newSettings.keySet()) {
+			if (rangeProducers.containsKey(key)) {
+				continue;
+			}
+			ConfigurationSection override = overrides
+					.getConfigurationSection(key);
+			
+			IRangeGroupType<?> type = registeredRangeGroupTypes
+					.get(override.getString("type"));
+			
+			if (type == null) {
+				throw new AssertionError("Failed to get the group "
+						+ "type for ChunkOverride" + key + "!  "
+						+ "Tried to use " + override.getString("type")
+						+ ", but that was not found.");
+			}
+			
+			IRangeGroup group = new RangeGroup(key, this);
+			IRangeProducer producer = type.createRangeProducer(group,
+					override);
+			
+			rangeProducers.put(key, producer);
+			rangeProducerSettings.put(key, newSettings.get(key));
+			changedGroups.add(key);
+		}
+		
+		// Set up the range producer used with permission requests, the
+		// first time only.
+		if (this.requestRangeProducer == null) {
+			RangeGroup requestRangeGroup = new RangeGroup("<Permission requests>", this);
+			this.requestRangeProducer = new TransientRangeProducer(
+					requestRangeGroup, this, expiryWheel);
+			rangeProducers.put("<Permission requests>", this.requestRangeProducer);
+			changedGroups.add("<Permission requests>");
+		}
+		this.requestRangeProducer.setMaxRangesPerPlayer(getConfig().getInt(
+				"wdl.maxRequestRanges", -1));
+		
+		rangeIndex = new WorldRangeIndex(rangeProducers);
+		return changedGroups;
 	}
 	
 	/**
-	 * Gets a world-specific configuration setting, or the default one if 
-	 * there is none set for the configuration.
-	 * 
-	 * @param world
-	 *            The world to use.
-	 * @param key
-	 *            The config key, which should be in the format of 
-	 *            "canDoNewThings", not "wdl.canDoNewThings".
-	 * @return
+	 * Disposes of a range producer that is no longer used, and its group.
+	 */
+	private void disposeRangeProducer(IRangeProducer producer) {
+		try {
+			producer.getRangeGroup().dispose();
+		} catch (Exception e) {
+			getLogger().log(Level.WARNING,
+					"Failed to dispose of old IRangeProducer " + producer
+							+ "'s range group: ", e);
+		}
+		try {
+			producer.dispose();
+		} catch (Exception e) {
+			getLogger().log(Level.WARNING,
+					"Failed to dispose of old IRangeProducer " + producer
+							+ ": ", e);
+		}
+	}
+	
+	/**
+	 * Compiles the {@link WorldSettings} for every loaded world from the
+	 * current config.  Should be called whenever the config is reloaded.
 	 */
-	private String getWorldStringConfigValue(World world, String key) {
-		String worldName = world.getName();
-		String worldKey = "wdl.per-world." + worldName + "." + key;
-		if (getConfig().isString(worldKey)) {
-			return getConfig().getString(worldKey);
+	private void compileWorldSettings() {
+		synchronized (worldSettings) {
+			worldSettings.clear();
+			for (World world : getServer().getWorlds()) {
+				worldSettings.put(world,
+						WorldSettings.compile(getConfig(), world.getName()));
+			}
+		}
+		invalidatePermissionCache();
+	}
+	
+	/**
+	 * Recompiles the {@link WorldSettings} for only the given worlds, and
+	 * discards the cached permissions of the players in them.
+	 */
+	private void compileWorldSettings(Set<String> worldNames) {
+		synchronized (worldSettings) {
+			for (World world : getServer().getWorlds()) {
+				if (worldNames.contains(world.getName())) {
+					worldSettings.put(world,
+							WorldSettings.compile(getConfig(), world.getName()));
+				}
+			}
+		}
+		packetCache.invalidate();
+		for (Player player : getServer().getOnlinePlayers()) {
+			if (worldNames.contains(player.getWorld().getName())) {
+				permissionHandler.invalidate(player.getUniqueId());
+			}
+		}
+	}
+	
+	/**
+	 * Gets the configured settings for the given world.
+	 */
+	WorldSettings getWorldSettings(World world) {
+		synchronized (worldSettings) {
+			WorldSettings settings = worldSettings.get(world);
+			if (settings == null) {
+				// Should only happen before the config is first loaded
+				settings = WorldSettings.compile(getConfig(), world.getName());
+				worldSettings.put(world, settings);
+			}
+			return settings;
 		}
-		
-		return getConfig().getString("wdl." + key);
 	}
 
 	/**
-	 * Gets the server's entity range settings.
+	 * Gets the server's entity range settings for the world the given player
+	 * is in.
 	 * 
 	 * @param player
 	 * @return
 	 */
-	@SuppressWarnings("deprecation")
 	private Map<String, Integer> getEntityRanges(Player player) {
 		String worldName = player.getWorld().getName();
 		
-		if (worldEntityRanges.containsKey(worldName)) {
-			return worldEntityRanges.get(worldName);
+		Map<String, Integer> ranges = worldEntityRanges.get(worldName);
+		if (ranges == null) {
+			ranges = entityTrackingRanges.getRanges(worldName);
+			worldEntityRanges.put(worldName, ranges);
 		}
+		return ranges;
+	}
+	
+	/**
+	 * (Re)loads the entity tracking ranges from spigot.yml, and discards
+	 * everything created from the old ranges.
+	 */
+	private void loadEntityTrackingRanges() {
+		entityTrackingRanges = EntityTrackingRanges.load(getSpigotConfigFile(),
+				getLogger());
+		worldEntityRanges.clear();
+		worldEntityRangePackets.clear();
+		packetCache.invalidate();
+	}
+	
+	/**
+	 * Gets the location of spigot.yml, which may not exist.
+	 */
+	private File getSpigotConfigFile() {
+		return new File(getServer().getWorldContainer().getAbsoluteFile()
+				.getParentFile(), "spigot.yml");
+	}
+	
+	/**
+	 * Starts or stops the {@link ConfigWatcher} to match the
+	 * <code>wdl.watchConfigFiles</code> setting.
+	 */
+	private void updateConfigWatcher() {
+		boolean watch = getConfig().getBoolean("wdl.watchConfigFiles", false);
+		if (watch && configWatcher == null) {
+			try {
+				configWatcher = ConfigWatcher.start(this, new File(
+						getDataFolder(), "config.yml"), getSpigotConfigFile(),
+						getConfig().getDefaults());
+			} catch (IOException e) {
+				getLogger().log(Level.WARNING, "Failed to start watching the "
+						+ "config files; use /wdl reload to apply changes.", e);
+			}
+		} else if (!watch && configWatcher != null) {
+			configWatcher.stop();
+			configWatcher = null;
+		}
+	}
+	
+	/**
+	 * Applies a config.yml that was changed on disk, found by the
+	 * {@link ConfigWatcher}.  The new config is compared with the active one,
+	 * and only the settings that changed are applied; if only the settings
+	 * for some worlds changed, only the players in those worlds are updated.
+	 */
+	void applyChangedConfig(FileConfiguration config) {
+		Map<String, Object> oldValues = getSettingValues(getConfig());
+		Map<String, Object> newValues = getSettingValues(config);
 		
-		Map<String, Integer> ranges = new HashMap<>();
-		
-		try {
-			int animalRange, monsterRange, miscRange, otherRange;
-			
-			File configFile = new File(getServer().getWorldContainer()
-					.getParentFile(), "spigot.yml");
-			if (!configFile.exists()) {
-				worldEntityRanges.put(worldName, ranges);
-				
-				getLogger().warning("Failed to find entity ranges for world " 
-						+ worldName + ".");
-				getLogger().warning("spigot.yml does not exist.");
-				getLogger().warning("If you're not running spigot, this " 
-						+ "doesn't matter.");
-				
-				return ranges;
+		Set<String> changedKeys = new HashSet<>(oldValues.keySet());
+		changedKeys.addAll(newValues.keySet());
+		for (String key : new ArrayList<>(changedKeys)) {
+			if (Objects.equal(oldValues.get(key), newValues.get(key))) {
+				changedKeys.remove(key);
 			}
-			
-			YamlConfiguration config = YamlConfiguration
-					.loadConfiguration(configFile);
-			
-			ConfigurationSection defaults = config
-					.getConfigurationSection("world-settings.default");
-			ConfigurationSection world = config
-					.getConfigurationSection("world-settings."
-							+ player.getWorld().getName());
-			
-			if (world == null) {
-				animalRange = defaults.getInt("entity-tracking-range.animals");
-				monsterRange = defaults.getInt("entity-tracking-range.monsters");
-				miscRange = defaults.getInt("entity-tracking-range.misc");
-				otherRange = defaults.getInt("entity-tracking-range.other");
-			} else {
-				if (world.isInt("entity-tracking-range.animals")) {
-					animalRange = world.getInt("entity-tracking-range.animals");
-				} else {
-					animalRange = defaults.getInt("entity-tracking-range.animals");
-				}
-				if (world.isInt("entity-tracking-range.monsters")) {
-					monsterRange = world.getInt("entity-tracking-range.monsters");
-				} else {
-					monsterRange = defaults.getInt("entity-tracking-range.monsters");
-				}
-				if (world.isInt("entity-tracking-range.misc")) {
-					miscRange = world.getInt("entity-tracking-range.misc");
-				} else {
-					miscRange = defaults.getInt("entity-tracking-range.misc");
-				}
-				if (world.isInt("entity-tracking-range.other")) {
-					otherRange = world.getInt("entity-tracking-range.other");
-				} else {
-					otherRange = defaults.getInt("entity-tracking-range.other");
+		}
+		if (changedKeys.isEmpty()) {
+			// EG only comments were changed
+			return;
+		}
+		
+		getLogger().info("config.yml was changed; applying " + changedKeys.size()
+				+ " changed setting(s).");
+		ConfigValidation.validateConfig(config, getServer().getConsoleSender(),
+				this);
+		changedConfig = config;
+		
+		boolean allWorldsChanged = false;
+		boolean chunkOverridesChanged = false;
+		boolean streamingRadiusChanged = false;
+		Set<String> changedWorlds = new HashSet<>();
+		for (String key : changedKeys) {
+			if (key.startsWith("wdl.per-world.")) {
+				String worldName = key.substring("wdl.per-world.".length());
+				if (worldName.indexOf('.') >= 0) {
+					worldName = worldName.substring(0, worldName.indexOf('.'));
 				}
+				changedWorlds.add(worldName);
+			} else if (key.equals("wdl.chunkOverrides")
+					|| key.startsWith("wdl.chunkOverrides.")) {
+				chunkOverridesChanged = true;
+			} else if (key.equals("wdl.rangeCompactionMode")
+					|| key.equals("wdl.rangeCompactionTimeBudget")) {
+				rangeCompactor = RangeCompactor.fromConfig(getConfig());
+			} else if (key.equals("wdl.rangeStreamingRadius")) {
+				rangeStreamingRadius = getRangeStreamingRadius();
+				streamingRadiusChanged = true;
+			} else if (key.equals("wdl.maxPacketBytesPerTick")
+					|| key.equals("wdl.maxPacketsPerTick")) {
+				updatePacketBudget();
+			} else if (key.equals("wdl.packetBuilderThreads")) {
+				updatePacketBuilderThreads();
+			} else if (key.equals("wdl.maxRequestRanges")) {
+				requestRangeProducer.setMaxRangesPerPlayer(getConfig().getInt(
+						"wdl.maxRequestRanges", -1));
+			} else if (key.equals("wdl.watchConfigFiles")) {
+				updateConfigWatcher();
+			} else if (key.equals("wdl.logMode")) {
+				getLogger().info("wdl.logMode was changed; it will be used "
+						+ "once the server is restarted.");
+			} else if (key.equals("wdl.requestDuration")
+					|| key.equals("wdl.playersUpdatedPerTick")) {
+				// Only used when a request is accepted or players are updated
+			} else {
+				allWorldsChanged = true;
 			}
-			
-			for (EntityType type : EntityType.values()) {
-				if (type.getName() == null) {
-					continue;
-				}
-				
-				//Based off of spigot's TrackingRange and ActivationRange.
-				int range;
-				
-				if (Monster.class.isAssignableFrom(type.getEntityClass()) ||
-						Slime.class.isAssignableFrom(type.getEntityClass())) {
-					range = monsterRange;
-				} else if (Creature.class.isAssignableFrom(type.getEntityClass()) ||
-						Ambient.class.isAssignableFrom(type.getEntityClass())) {
-					range = animalRange;
-				} else if (ItemFrame.class.isAssignableFrom(type.getEntityClass()) ||
-						Painting.class.isAssignableFrom(type.getEntityClass()) ||
-						Item.class.isAssignableFrom(type.getEntityClass()) ||
-						ExperienceOrb.class.isAssignableFrom(type.getEntityClass())) {
-					range = miscRange;
-				} else {
-					range = otherRange;
-				}
-				
-				ranges.put(type.getName(), range);
+		}
+		
+		if (chunkOverridesChanged) {
+			resyncRangeGroups(createRangeProducers());
+		}
+		if (streamingRadiusChanged) {
+			resyncRangeGroups(new HashSet<>(rangeProducers.keySet()));
+		}
+		if (allWorldsChanged) {
+			compileWorldSettings();
+			updateAllPlayers();
+		} else if (!changedWorlds.isEmpty()) {
+			compileWorldSettings(changedWorlds);
+			updatePlayersInWorlds(changedWorlds);
+		}
+	}
+	
+	/**
+	 * Gets all of the values that are set in the given section, by their
+	 * paths relative to it.  Sections themselves are not included, only the
+	 * values in them.
+	 */
+	private static Map<String, Object> getSettingValues(ConfigurationSection config) {
+		Map<String, Object> values = new HashMap<>();
+		for (Map.Entry<String, Object> e : config.getValues(true).entrySet()) {
+			if (!(e.getValue() instanceof ConfigurationSection)) {
+				values.put(e.getKey(), e.getValue());
 			}
-			
-			ranges.put("Hologram", otherRange);
-		} catch (Exception e) {
-			getLogger().log(Level.WARNING, "Failed to find entity ranges for " 
-					+ "world " + worldName + ".", e);
-			
-			ranges.clear();
+		}
+		return values;
+	}
+	
+	/**
+	 * Applies entity tracking ranges from a spigot.yml that was changed on
+	 * disk, found by the {@link ConfigWatcher}.  Only the players in worlds
+	 * whose ranges changed are updated.
+	 */
+	void applyChangedEntityTrackingRanges(EntityTrackingRanges ranges) {
+		Set<String> worldNames = new HashSet<>(worldEntityRanges.keySet());
+		for (World world : getServer().getWorlds()) {
+			worldNames.add(world.getName());
 		}
 		
-		worldEntityRanges.put(worldName, ranges);
+		Set<String> changedWorlds = new HashSet<>();
+		for (String worldName : worldNames) {
+			if (!ranges.getRanges(worldName).equals(
+					entityTrackingRanges.getRanges(worldName))) {
+				changedWorlds.add(worldName);
+			}
+		}
 		
-		return ranges;
+		entityTrackingRanges = ranges;
+		if (changedWorlds.isEmpty()) {
+			return;
+		}
+		
+		getLogger().info("spigot.yml was changed; updating the entity ranges "
+				+ "for " + changedWorlds.size() + " world(s).");
+		for (String worldName : changedWorlds) {
+			worldEntityRanges.remove(worldName);
+			worldEntityRangePackets.remove(worldName);
+		}
+		packetCache.invalidate();
+		updatePlayersInWorlds(changedWorlds);
 	}
 	
 	/**
-	 * Gets the ranges that apply to the given player.
+	 * Gets packet #2 with the entity ranges for the world the given player is
+	 * in.  The packet is shared, and must not be modified.
+	 */
+	private byte[] getEntityRangesPacket(Player player) {
+		String worldName = player.getWorld().getName();
+		
+		byte[] packet = worldEntityRangePackets.get(worldName);
+		if (packet == null) {
+			packet = WDLPackets.createWDLPacket2(getEntityRanges(player));
+			worldEntityRangePackets.put(worldName, packet);
+		}
+		return packet;
+	}
+	
+	/**
+	 * Gets the compactor that should be used for ranges sent by
+	 * {@link RangeGroup}s.
+	 */
+	RangeCompactor getRangeCompactor() {
+		return rangeCompactor;
+	}
+	
+	/**
+	 * Gets the ranges that apply to the given player, in the world they are
+	 * in.  The packets are built from them on another thread, so the lists
+	 * from other producers are copied with {@link ImmutableList#copyOf}; this
+	 * doesn't copy lists that are already immutable, like the ones from
+	 * {@link TransientRangeProducer}.
 	 */
 	private Map<String, List<ProtectionRange>> getRanges(Player player) {
-		Map<String, List<ProtectionRange>> ranges = new HashMap<>();
+		Map<String, List<ProtectionRange>> ranges = new HashMap<>(
+				rangeIndex.getRanges(player.getWorld().getName()));
 		
-		for (Map.Entry<String, IRangeProducer> e : rangeProducers.entrySet()) {
-			ranges.put(e.getKey(), e.getValue().getInitialRanges(player));
+		for (Map.Entry<String, IRangeProducer> e : rangeIndex
+				.getOtherProducers().entrySet()) {
+			ranges.put(e.getKey(), ImmutableList.copyOf(
+					e.getValue().getInitialRanges(player)));
 		}
 		return ranges;
 	}
 	
 	/**
-	 * Creates the byte arrays for all of the WDL packets.
+	 * Gets the area that ranges are sent in for a player at the given
+	 * location, or null if <code>wdl.rangeStreamingRadius</code> isn't set.
+	 */
+	private StreamingArea getStreamingArea(Location location) {
+		if (rangeStreamingRadius < 0) {
+			return null;
+		}
+		return StreamingArea.around(location, rangeStreamingRadius);
+	}
+	
+	/**
+	 * Applies <code>wdl.maxPacketBytesPerTick</code> and
+	 * <code>wdl.maxPacketsPerTick</code> from the config.
+	 */
+	private void updatePacketBudget() {
+		packetFlusher.setBudget(
+				getConfig().getInt("wdl.maxPacketBytesPerTick", 262144),
+				getConfig().getInt("wdl.maxPacketsPerTick", 256));
+	}
+	
+	/**
+	 * Applies <code>wdl.packetBuilderThreads</code> from the config.
+	 */
+	private void updatePacketBuilderThreads() {
+		packetBuilder.setThreads(getConfig().getInt(
+				"wdl.packetBuilderThreads", 2));
+	}
+	
+	/**
+	 * Gets <code>wdl.rangeStreamingRadius</code> from the config, with
+	 * negative values all meaning that it's disabled.
+	 */
+	private int getRangeStreamingRadius() {
+		int radius = getConfig().getInt("wdl.rangeStreamingRadius", -1);
+		return (radius < 0 ? -1 : radius);
+	}
+	
+	/**
+	 * Creates the byte arrays for WDL packets #0 through #3; the ranges are
+	 * handled by {@link RangeSyncState}.  Players with the same effective
+	 * permissions share the same arrays, which must not be modified.
 	 * 
 	 * @param player
 	 * @return
 	 */
 	private byte[][] createWDLPackets(Player player) {
-		byte[][] packets = new byte[5][];
-		
-		//Packet #1
-		boolean globalIsEnabled = permissionHandler.getCanDownloadInGeneral(player);
-		int saveRadius = permissionHandler.getSaveRadius(player);
-		boolean cacheChunks = permissionHandler.getCanCacheChunks(player);
-		boolean saveEntities = permissionHandler.getCanSaveEntities(player);
-		boolean saveTileEntities = permissionHandler.getCanSaveEntities(player);
-		boolean saveContainers = permissionHandler.getCanSaveContainers(player);
-
-		packets[1] = WDLPackets.createWDLPacket1(globalIsEnabled, saveRadius, cacheChunks,
-				saveEntities, saveTileEntities, saveContainers);
-		
-		//Packet #0
-		boolean canDoNewThings = permissionHandler.getCanDoNewThings(player);
-		packets[0] = WDLPackets.createWDLPacket0(canDoNewThings && globalIsEnabled);
-		
-		//Packet #2
-		Map<String, Integer> entityMap = new HashMap<>();
-		if (globalIsEnabled && saveEntities && permissionHandler.getSendEntityRanges(player)) {
-			entityMap.putAll(getEntityRanges(player));
-		}
-		packets[2] = WDLPackets.createWDLPacket2(entityMap);
-		
-		//Packet #3
-		String requestMessage = getWorldStringConfigValue(player.getWorld(),
-				"requestMessage");
-		packets[3] = WDLPackets.createWDLPacket3(requestMessage);
-		
-		//Packet #4
-		Map<String, List<ProtectionRange>> ranges = getRanges(player);
-		packets[4] = WDLPackets.createWDLPacket4(ranges);
-		
-		return packets;
+		ResolvedPermissions permissions = permissionHandler
+				.getResolvedPermissions(player);
+		return packetCache.getPackets(permissions, player.getWorld().getName(),
+				getEntityRangesPacket(player),
+				getWorldSettings(player.getWorld()).requestMessage);
 	}
 	
 	/**
-	 * Queues a plugin channel packet to be sent to the given player on the next
+	 * Queues a range operation to be sent to the given player on the next
 	 * tick.
 	 * 
 	 * @param player
-	 *            The player to send the packet to.
-	 * @param data
-	 *            The packet to send.
+	 *            The player to send the operation to.
+	 * @param operation
+	 *            The operation to send.
 	 */
-	void queuePacket(Player to, byte[] data) {
+	void queueRangeOperation(Player to, RangeOperation operation) {
 		if (to == null) {
 			throw new IllegalArgumentException("'to' must not be null!");
 		}
-		if (data == null) {
-			throw new IllegalArgumentException("'data' must not be null!");
+		if (operation == null) {
+			throw new IllegalArgumentException("'operation' must not be null!");
 		}
 		
-		synchronized (packetsToSend) {
-			boolean addRunnable = packetsToSend.isEmpty();
-
-			PacketInfo packet;
-			if (to.getListeningPluginChannels().contains(CONTROL_CHANNEL_NAME_113)) {
-				packet = new PacketInfo(to, CONTROL_CHANNEL_NAME_113, data);
-			} else {
-				packet = new PacketInfo(to, CONTROL_CHANNEL_NAME_112, data);
-			}
-			
-			packetsToSend.add(packet);
-			
-			if (addRunnable) {
-				Bukkit.getScheduler().runTask(this, new Runnable() {
-					@Override
-					public void run() {
-						synchronized (packetsToSend) {
-							for (PacketInfo packet : packetsToSend) {
-								packet.player.sendPluginMessage(
-										WDLCompanion.this, packet.channel,
-										packet.data);
-							}
-							
-							packetsToSend.clear();
-						}
-					}
-				});
-			}
-		}
+		packetFlusher.queue(to, getControlChannel(to), operation);
 	}
 	
 	/**
-	 * Packets to send on the next server tick.
+	 * Gets the ranges that the given player was last sent, or null if they
+	 * haven't been sent any.
 	 */
-	private List<PacketInfo> packetsToSend = new ArrayList<>();
+	RangeSyncState getRangeSyncState(UUID playerId) {
+		return rangeSyncStates.get(playerId);
+	}
 	
 	/**
-	 * Packet to send to a player.
+	 * Forgets the ranges that the given player's client has, along with the
+	 * packets and range operations that haven't been sent to them yet and
+	 * any update that is being built for them.  The next time they are
+	 * updated, all of their ranges are sent with packet #4.
 	 */
-	private class PacketInfo {
-		public PacketInfo(Player player, String channel, byte[] data) {
-			this.player = player;
-			this.channel = channel;
-			this.data = data;
+	private void forgetRangeSyncState(UUID playerId) {
+		rangeSyncStates.remove(playerId);
+		packetFlusher.discard(playerId);
+	}
+	
+	/**
+	 * Forgets the ranges that the given player was sent, if they are still
+	 * the given ones, so that all of their ranges are sent the next time
+	 * they are updated.  Used when building their packets failed part of
+	 * the way through.
+	 */
+	void resetRangeSyncState(UUID playerId, RangeSyncState syncState) {
+		if (rangeSyncStates.get(playerId) == syncState) {
+			rangeSyncStates.put(playerId, new RangeSyncState());
 		}
-		
-		public final Player player;
-		public final String channel;
-		public final byte[] data;
 	}
 }
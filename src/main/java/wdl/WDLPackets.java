@@ -1,17 +1,19 @@
 package wdl;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 import org.bukkit.entity.Player;
+import org.bukkit.plugin.messaging.Messenger;
 
 import wdl.range.ProtectionRange;
 import wdl.request.PermissionRequest;
 
 import com.google.common.io.ByteArrayDataInput;
-import com.google.common.io.ByteArrayDataOutput;
 import com.google.common.io.ByteStreams;
 
 /**
@@ -20,6 +22,12 @@ import com.google.common.io.ByteStreams;
  * <a href="http://wiki.vg/User:Pokechu22/World_downloader">on wiki.vg</a>.
  */
 public class WDLPackets {
+	/**
+	 * Largest packet that can be sent as a single plugin message.  Range
+	 * packets larger than this are split by the
+	 * <code>createSplitWDLPacket</code> methods.
+	 */
+	public static final int MAX_PACKET_SIZE = Messenger.MAX_MESSAGE_SIZE;
 
 	/**
 	 * Creates a byte array for the WDL control packet #0.
@@ -30,7 +38,8 @@ public class WDLPackets {
 	 * @return
 	 */
 	public static byte[] createWDLPacket0(boolean canDoNewThings) {
-		ByteArrayDataOutput output = ByteStreams.newDataOutput();
+		PacketWriter output = new PacketWriter(PacketWriter.SIZE_OF_INT
+				+ PacketWriter.SIZE_OF_BOOLEAN);
 	
 		output.writeInt(0);
 		
@@ -73,7 +82,8 @@ public class WDLPackets {
 	public static byte[] createWDLPacket1(boolean globalIsEnabled, int saveRadius,
 			boolean cacheChunks, boolean saveEntities,
 			boolean saveTileEntities, boolean saveContainers) {
-		ByteArrayDataOutput output = ByteStreams.newDataOutput();
+		PacketWriter output = new PacketWriter(PacketWriter.SIZE_OF_INT * 2
+				+ PacketWriter.SIZE_OF_BOOLEAN * 5);
 	
 		output.writeInt(1);
 	
@@ -102,7 +112,11 @@ public class WDLPackets {
 	 * @return
 	 */
 	public static byte[] createWDLPacket2(Map<String, Integer> ranges) {
-		ByteArrayDataOutput output = ByteStreams.newDataOutput();
+		int size = PacketWriter.SIZE_OF_INT * 2;
+		for (Map.Entry<String, Integer> e : ranges.entrySet()) {
+			size += PacketWriter.sizeOfUTF(e.getKey()) + PacketWriter.SIZE_OF_INT;
+		}
+		PacketWriter output = new PacketWriter(size);
 		
 		output.writeInt(2);
 		
@@ -128,7 +142,8 @@ public class WDLPackets {
 	 * @return
 	 */
 	public static byte[] createWDLPacket3(String message) {
-		ByteArrayDataOutput output = ByteStreams.newDataOutput();
+		PacketWriter output = new PacketWriter(PacketWriter.SIZE_OF_INT
+				+ PacketWriter.SIZE_OF_BOOLEAN + PacketWriter.sizeOfUTF(message));
 		
 		output.writeInt(3);
 		
@@ -148,22 +163,27 @@ public class WDLPackets {
 	 * series of values for 1 range group. The range group starts with its name
 	 * (the key in ranges), then an int (the number of ranges) and then each of
 	 * the ranges as generated by
-	 * {@link #writeProtectionRange(ProtectionRange, ByteArrayDataOutput)}.
+	 * {@link PacketWriter#writeRange(ProtectionRange)}.
 	 */
 	public static byte[] createWDLPacket4(
 			Map<String, List<ProtectionRange>> ranges) {
-		ByteArrayDataOutput output = ByteStreams.newDataOutput();
+		int size = PacketWriter.SIZE_OF_INT * 2;
+		for (Map.Entry<String, List<ProtectionRange>> e : ranges.entrySet()) {
+			size += PacketWriter.sizeOfUTF(e.getKey()) + PacketWriter.SIZE_OF_INT
+					+ sizeOfRanges(e.getValue());
+		}
+		PacketWriter output = new PacketWriter(size);
 		
 		output.writeInt(4);
 		
 		output.writeInt(ranges.size());
 		
-		for (String key : ranges.keySet()) {
-			output.writeUTF(key);
-			List<ProtectionRange> rangeGroup = ranges.get(key);
+		for (Map.Entry<String, List<ProtectionRange>> e : ranges.entrySet()) {
+			output.writeUTF(e.getKey());
+			List<ProtectionRange> rangeGroup = e.getValue();
 			output.writeInt(rangeGroup.size());
 			for (ProtectionRange range : rangeGroup) {
-				writeProtectionRange(range, output);
+				output.writeRange(range);
 			}
 		}
 		
@@ -180,11 +200,13 @@ public class WDLPackets {
 	 * specifies whether it is setting (true) or adding (false) the ranges, and
 	 * then an int (the number of ranges that will be added). Then, each range,
 	 * formated by
-	 * {@link #writeProtectionRange(ProtectionRange, ByteArrayDataOutput)}.
+	 * {@link PacketWriter#writeRange(ProtectionRange)}.
 	 */
 	public static byte[] createWDLPacket5(String group,
 			boolean replace, List<ProtectionRange> ranges) {
-		ByteArrayDataOutput output = ByteStreams.newDataOutput();
+		PacketWriter output = new PacketWriter(PacketWriter.SIZE_OF_INT
+				+ PacketWriter.sizeOfUTF(group) + PacketWriter.SIZE_OF_BOOLEAN
+				+ PacketWriter.SIZE_OF_INT + sizeOfRanges(ranges));
 		
 		output.writeInt(5);
 		
@@ -193,7 +215,7 @@ public class WDLPackets {
 		output.writeInt(ranges.size());
 		
 		for (ProtectionRange range : ranges) {
-			writeProtectionRange(range, output);
+			output.writeRange(range);
 		}
 		
 		return output.toByteArray();
@@ -209,7 +231,11 @@ public class WDLPackets {
 	 * tags), followed by each of the tags.
 	 */
 	public static byte[] createWDLPacket6(String group, List<String> tags) {
-		ByteArrayDataOutput output = ByteStreams.newDataOutput();
+		int size = PacketWriter.SIZE_OF_INT * 2 + PacketWriter.sizeOfUTF(group);
+		for (String tag : tags) {
+			size += PacketWriter.sizeOfUTF(tag);
+		}
+		PacketWriter output = new PacketWriter(size);
 		
 		output.writeInt(6);
 		
@@ -232,11 +258,13 @@ public class WDLPackets {
 	 * This packet starts with a String stating the group, then a second string
 	 * that specifies the tag to replace. After that, there is an int stating
 	 * the number of ranges, and then each range as formated by
-	 * {@link #writeProtectionRange(ProtectionRange, ByteArrayDataOutput)}.
+	 * {@link PacketWriter#writeRange(ProtectionRange)}.
 	 */
 	public static byte[] createWDLPacket7(String group,
 			String tag, List<ProtectionRange> newRanges) {
-		ByteArrayDataOutput output = ByteStreams.newDataOutput();
+		PacketWriter output = new PacketWriter(PacketWriter.SIZE_OF_INT
+				+ PacketWriter.sizeOfUTF(group) + PacketWriter.sizeOfUTF(tag)
+				+ PacketWriter.SIZE_OF_INT + sizeOfRanges(newRanges));
 		
 		output.writeInt(7);
 		
@@ -246,12 +274,175 @@ public class WDLPackets {
 		output.writeInt(newRanges.size());
 		
 		for (ProtectionRange range : newRanges) {
-			writeProtectionRange(range, output);
+			output.writeRange(range);
 		}
 		
 		return output.toByteArray();
 	}
 	
+	/**
+	 * Creates WDL packet #4, split into multiple packets if it is larger than
+	 * {@link #MAX_PACKET_SIZE}.
+	 * 
+	 * If it is too large, groups whose ranges fit are still sent in full in
+	 * packet #4, and the other groups are sent empty.  Their ranges then
+	 * follow with {@link #createSplitWDLPacket5(String, boolean, List)}.
+	 */
+	public static List<byte[]> createSplitWDLPacket4(
+			Map<String, List<ProtectionRange>> ranges) {
+		return createSplitWDLPacket4(ranges, MAX_PACKET_SIZE);
+	}
+	
+	static List<byte[]> createSplitWDLPacket4(
+			Map<String, List<ProtectionRange>> ranges, int maxSize) {
+		// Size of the packet if every group was empty
+		int headerSize = PacketWriter.SIZE_OF_INT * 2;
+		int size = headerSize;
+		int[] rangeSizes = new int[ranges.size()];
+		int i = 0;
+		for (Map.Entry<String, List<ProtectionRange>> e : ranges.entrySet()) {
+			headerSize += PacketWriter.sizeOfUTF(e.getKey()) + PacketWriter.SIZE_OF_INT;
+			rangeSizes[i] = sizeOfRanges(e.getValue());
+			size += rangeSizes[i];
+			i++;
+		}
+		size += headerSize - PacketWriter.SIZE_OF_INT * 2;
+		if (size <= maxSize) {
+			return Collections.singletonList(createWDLPacket4(ranges));
+		}
+		if (headerSize > maxSize) {
+			throw new IllegalArgumentException("Too many range groups to "
+					+ "send (" + ranges.size() + " groups use " + headerSize
+					+ " bytes, max " + maxSize + ")");
+		}
+		
+		Map<String, List<ProtectionRange>> initial = new LinkedHashMap<>();
+		List<String> remaining = new ArrayList<>();
+		int space = maxSize - headerSize;
+		i = 0;
+		for (Map.Entry<String, List<ProtectionRange>> e : ranges.entrySet()) {
+			if (rangeSizes[i] <= space) {
+				initial.put(e.getKey(), e.getValue());
+				space -= rangeSizes[i];
+			} else {
+				initial.put(e.getKey(), Collections.<ProtectionRange> emptyList());
+				remaining.add(e.getKey());
+			}
+			i++;
+		}
+		
+		List<byte[]> packets = new ArrayList<>();
+		packets.add(createWDLPacket4(initial));
+		for (String group : remaining) {
+			packets.addAll(createSplitWDLPacket5(group, true, ranges.get(group),
+					maxSize));
+		}
+		return packets;
+	}
+	
+	/**
+	 * Creates WDL packet #5, split into multiple packets if it is larger than
+	 * {@link #MAX_PACKET_SIZE}.
+	 * 
+	 * If it is too large, the first packet uses the given value of replace,
+	 * and the rest of the ranges are added with replace set to false.
+	 */
+	public static List<byte[]> createSplitWDLPacket5(String group,
+			boolean replace, List<ProtectionRange> ranges) {
+		return createSplitWDLPacket5(group, replace, ranges, MAX_PACKET_SIZE);
+	}
+	
+	static List<byte[]> createSplitWDLPacket5(String group,
+			boolean replace, List<ProtectionRange> ranges, int maxSize) {
+		int headerSize = PacketWriter.SIZE_OF_INT * 2
+				+ PacketWriter.sizeOfUTF(group) + PacketWriter.SIZE_OF_BOOLEAN;
+		if (headerSize + sizeOfRanges(ranges) <= maxSize) {
+			return Collections.singletonList(createWDLPacket5(group, replace,
+					ranges));
+		}
+		
+		List<byte[]> packets = new ArrayList<>();
+		int start = 0;
+		while (start < ranges.size()) {
+			int end = fillPacket(ranges, start, maxSize - headerSize);
+			packets.add(createWDLPacket5(group, replace && start == 0,
+					ranges.subList(start, end)));
+			start = end;
+		}
+		return packets;
+	}
+	
+	/**
+	 * Creates WDL packet #6, split into multiple packets if it is larger than
+	 * {@link #MAX_PACKET_SIZE}.  Each packet removes some of the tags.
+	 */
+	public static List<byte[]> createSplitWDLPacket6(String group,
+			List<String> tags) {
+		return createSplitWDLPacket6(group, tags, MAX_PACKET_SIZE);
+	}
+	
+	static List<byte[]> createSplitWDLPacket6(String group,
+			List<String> tags, int maxSize) {
+		int headerSize = PacketWriter.SIZE_OF_INT * 2
+				+ PacketWriter.sizeOfUTF(group);
+		int size = headerSize;
+		for (String tag : tags) {
+			size += PacketWriter.sizeOfUTF(tag);
+		}
+		if (size <= maxSize) {
+			return Collections.singletonList(createWDLPacket6(group, tags));
+		}
+		
+		List<byte[]> packets = new ArrayList<>();
+		int start = 0;
+		while (start < tags.size()) {
+			int end = start;
+			size = headerSize;
+			while (end < tags.size()
+					&& size + PacketWriter.sizeOfUTF(tags.get(end)) <= maxSize) {
+				size += PacketWriter.sizeOfUTF(tags.get(end));
+				end++;
+			}
+			if (end == start) {
+				throw new IllegalArgumentException("Tag is too long to send: "
+						+ tags.get(start));
+			}
+			packets.add(createWDLPacket6(group, tags.subList(start, end)));
+			start = end;
+		}
+		return packets;
+	}
+	
+	/**
+	 * Creates WDL packet #7, split into multiple packets if it is larger than
+	 * {@link #MAX_PACKET_SIZE}.
+	 * 
+	 * If it is too large, packet #7 is sent with as many of the ranges as fit,
+	 * and the rest are added with
+	 * {@link #createSplitWDLPacket5(String, boolean, List)}.
+	 */
+	public static List<byte[]> createSplitWDLPacket7(String group,
+			String tag, List<ProtectionRange> newRanges) {
+		return createSplitWDLPacket7(group, tag, newRanges, MAX_PACKET_SIZE);
+	}
+	
+	static List<byte[]> createSplitWDLPacket7(String group,
+			String tag, List<ProtectionRange> newRanges, int maxSize) {
+		int headerSize = PacketWriter.SIZE_OF_INT * 2
+				+ PacketWriter.sizeOfUTF(group) + PacketWriter.sizeOfUTF(tag);
+		if (headerSize + sizeOfRanges(newRanges) <= maxSize) {
+			return Collections.singletonList(createWDLPacket7(group, tag,
+					newRanges));
+		}
+		
+		int end = fillPacket(newRanges, 0, maxSize - headerSize);
+		List<byte[]> packets = new ArrayList<>();
+		packets.add(createWDLPacket7(group, tag, newRanges.subList(0, end)));
+		packets.addAll(createSplitWDLPacket5(group, false,
+				newRanges.subList(end, newRanges.size()), maxSize));
+		return packets;
+	}
+	
 	/**
 	 * Reads a permission request.
 	 */
@@ -281,32 +472,40 @@ public class WDLPackets {
 	}
 	
 	/**
-	 * Writes a protection range to the given output stream.
+	 * Finds how many ranges fit in a packet.
 	 * 
-	 * This is a string with the range's tag, then 4 integers for the
-	 * coordinates (x1, z1, x2, z2). This method also swaps x1 and x2 if x1 is
-	 * greater than x2.
+	 * @param ranges The ranges to send.
+	 * @param start The index of the first range to put in the packet.
+	 * @param space The number of bytes available for ranges.
+	 * @return The index after the last range that fits.
 	 */
-	private static void writeProtectionRange(ProtectionRange range, 
-			ByteArrayDataOutput output) {
-		output.writeUTF(range.tag);
-		
-		int x1 = range.x1, z1 = range.z1;
-		int x2 = range.x2, z2 = range.z2;
-		
-		if (x1 > x2) {
-			x2 = range.x1;
-			x1 = range.x2;
+	private static int fillPacket(List<ProtectionRange> ranges, int start,
+			int space) {
+		int end = start;
+		while (end < ranges.size()) {
+			int size = PacketWriter.sizeOfRange(ranges.get(end));
+			if (size > space) {
+				break;
+			}
+			space -= size;
+			end++;
 		}
-		if (z1 > z2) {
-			z2 = range.z1;
-			z1 = range.z2;
+		if (end == start && start < ranges.size()) {
+			throw new IllegalArgumentException("Range is too large to send: "
+					+ ranges.get(start));
 		}
-		
-		output.writeInt(x1);
-		output.writeInt(z1);
-		output.writeInt(x2);
-		output.writeInt(z2);
+		return end;
+	}
+	
+	/**
+	 * Gets the number of bytes used by the given ranges.
+	 */
+	private static int sizeOfRanges(List<ProtectionRange> ranges) {
+		int size = 0;
+		for (ProtectionRange range : ranges) {
+			size += PacketWriter.sizeOfRange(range);
+		}
+		return size;
 	}
 	
 	/**
@@ -0,0 +1,123 @@
+package wdl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import wdl.range.IRangeProducer;
+import wdl.range.ProtectionRange;
+import wdl.range.SimpleRangeProducer;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Index of the ranges from producers that give every player in a world the
+ * same ranges (the {@link SimpleRangeProducer}s used by the built-in chunk
+ * override types), by world.  This means that updating a player only needs
+ * to ask the other producers for their ranges.
+ * <br/>
+ * The ranges for a world are built the first time they are needed, with an
+ * entry for every indexed group (empty for groups that don't apply in that
+ * world).  Only used on the main thread; a new index must be created
+ * whenever the producers change.
+ */
+final class WorldRangeIndex {
+	/**
+	 * Ranges of indexed groups that apply in all worlds.
+	 */
+	private final Map<String, List<ProtectionRange>> allWorldRanges = new HashMap<>();
+	/**
+	 * Ranges of indexed groups that apply in a single world, by world name.
+	 */
+	private final Map<String, Map<String, List<ProtectionRange>>> singleWorldRanges = new HashMap<>();
+	/**
+	 * Names of all of the indexed groups.
+	 */
+	private final List<String> groupNames;
+	/**
+	 * Producers that aren't indexed, and need to be asked for each player's
+	 * ranges.
+	 */
+	private final Map<String, IRangeProducer> otherProducers;
+	/**
+	 * The ranges of the indexed groups for each world, built from the above.
+	 */
+	private final Map<String, Map<String, List<ProtectionRange>>> worldRanges = new HashMap<>();
+
+	/**
+	 * Creates a new index.
+	 *
+	 * @param producers
+	 *            All range producers, by group name.  The map is copied.
+	 */
+	public WorldRangeIndex(Map<String, IRangeProducer> producers) {
+		Map<String, IRangeProducer> otherProducers = new HashMap<>();
+		List<String> groupNames = new ArrayList<>();
+
+		for (Map.Entry<String, IRangeProducer> e : producers.entrySet()) {
+			if (!(e.getValue() instanceof SimpleRangeProducer)) {
+				otherProducers.put(e.getKey(), e.getValue());
+				continue;
+			}
+			SimpleRangeProducer producer = (SimpleRangeProducer) e.getValue();
+			groupNames.add(e.getKey());
+
+			if (producer.appliesToAllWorlds) {
+				allWorldRanges.put(e.getKey(), producer.getRanges());
+			} else {
+				Map<String, List<ProtectionRange>> ranges = singleWorldRanges
+						.get(producer.worldName);
+				if (ranges == null) {
+					ranges = new HashMap<>();
+					singleWorldRanges.put(producer.worldName, ranges);
+				}
+				ranges.put(e.getKey(), producer.getRanges());
+			}
+		}
+
+		this.groupNames = groupNames;
+		this.otherProducers = Collections.unmodifiableMap(otherProducers);
+	}
+
+	/**
+	 * Gets the ranges of all indexed groups in the given world.
+	 *
+	 * @return An immutable map from group names to ranges, with every indexed
+	 *         group.
+	 */
+	public Map<String, List<ProtectionRange>> getRanges(String worldName) {
+		Map<String, List<ProtectionRange>> ranges = worldRanges.get(worldName);
+		if (ranges == null) {
+			Map<String, List<ProtectionRange>> inWorld = singleWorldRanges
+					.get(worldName);
+			if (inWorld == null) {
+				inWorld = Collections.emptyMap();
+			}
+
+			ImmutableMap.Builder<String, List<ProtectionRange>> builder =
+					ImmutableMap.builder();
+			for (String group : groupNames) {
+				List<ProtectionRange> groupRanges = inWorld.get(group);
+				if (groupRanges == null) {
+					groupRanges = allWorldRanges.get(group);
+				}
+				if (groupRanges == null) {
+					groupRanges = Collections.emptyList();
+				}
+				builder.put(group, groupRanges);
+			}
+			ranges = builder.build();
+			worldRanges.put(worldName, ranges);
+		}
+		return ranges;
+	}
+
+	/**
+	 * Gets the producers that aren't indexed, by group name.
+	 */
+	public Map<String, IRangeProducer> getOtherProducers() {
+		return otherProducers;
+	}
+}
@@ -0,0 +1,75 @@
+package wdl;
+
+import org.bukkit.configuration.Configuration;
+
+/**
+ * The configured settings for a single world, with the per-world values
+ * already applied.  These are compiled from the config when it is loaded, so
+ * that checking a setting doesn't need to look anything up in the config.
+ * <br/>
+ * This class is immutable.
+ */
+final class WorldSettings {
+	public final boolean canDoNewThings;
+	public final boolean canDownloadInGeneral;
+	/**
+	 * The configured save radius; -1 if the server's view distance is used.
+	 */
+	public final int saveRadius;
+	public final boolean canCacheChunks;
+	public final boolean canSaveEntities;
+	public final boolean canSaveTileEntities;
+	public final boolean canSaveContainers;
+	public final boolean sendEntityRanges;
+	public final String requestMessage;
+
+	private WorldSettings(Configuration config, String worldName) {
+		String worldPrefix = "wdl.per-world." + worldName + ".";
+
+		this.canDoNewThings = getBoolean(config, worldPrefix, "canDoNewThings");
+		this.canDownloadInGeneral = getBoolean(config, worldPrefix, "canDownloadInGeneral");
+		this.canCacheChunks = getBoolean(config, worldPrefix, "canCacheChunks");
+		this.canSaveEntities = getBoolean(config, worldPrefix, "canSaveEntities");
+		this.canSaveTileEntities = getBoolean(config, worldPrefix, "canSaveTileEntities");
+		this.canSaveContainers = getBoolean(config, worldPrefix, "canSaveContainers");
+		this.sendEntityRanges = getBoolean(config, worldPrefix, "sendEntityRanges");
+
+		int saveRadius;
+		if (config.isInt(worldPrefix + "saveRadius")) {
+			saveRadius = config.getInt(worldPrefix + "saveRadius");
+		} else {
+			saveRadius = config.getInt("wdl.saveRadius");
+		}
+		this.saveRadius = (saveRadius <= -1 ? -1 : saveRadius);
+
+		if (config.isString(worldPrefix + "requestMessage")) {
+			this.requestMessage = config.getString(worldPrefix + "requestMessage");
+		} else {
+			this.requestMessage = config.getString("wdl.requestMessage", "");
+		}
+	}
+
+	/**
+	 * Compiles the settings for the given world.
+	 *
+	 * @param config
+	 *            The plugin's config.
+	 * @param worldName
+	 *            The name of the world.
+	 */
+	public static WorldSettings compile(Configuration config, String worldName) {
+		return new WorldSettings(config, worldName);
+	}
+
+	/**
+	 * Gets a boolean from the configuration, using the value for the world if
+	 * it is set.
+	 */
+	private static boolean getBoolean(Configuration config, String worldPrefix,
+			String key) {
+		if (config.isBoolean(worldPrefix + key)) {
+			return config.getBoolean(worldPrefix + key);
+		}
+		return config.getBoolean("wdl." + key);
+	}
+}
@@ -0,0 +1,399 @@
+package wdl.range;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A file with one bit for each chunk in a rectangular area of regions, which
+ * says whether the chunk can be downloaded.  This is used by the
+ * <code>ChunkBitmap</code> chunk override type, for areas that are too large
+ * to list as ranges.  Other plugins or tools can use this class to create and
+ * edit the files.
+ * <br/>
+ * Files opened for writing are memory-mapped.  Files opened read-only are
+ * read into memory instead: a mapping is only released once it is garbage
+ * collected, and until then the file can't be replaced on Windows.
+ * <br/>
+ * The file format is as follows (all values are big-endian ints):
+ * <ol>
+ * <li>The magic number, 0x57444C42 (<code>WDLB</code>).</li>
+ * <li>The format version, currently 1.</li>
+ * <li>The generation, which must be incremented after the bits are changed
+ * (see {@link #markChanged()}) so that the change is noticed.</li>
+ * <li>The X and Z coordinates of the first region.</li>
+ * <li>The number of regions along the X and Z axes.</li>
+ * <li>The regions, ordered by Z and then by X.  Each region is 32 ints, one
+ * for each row of 32 chunks in it (ordered by Z); bit <code>n</code> (where
+ * bit 0 is the lowest bit) is set if the chunk at X offset <code>n</code> in
+ * that row can be downloaded.</li>
+ * </ol>
+ * Chunks outside of the area cannot be downloaded.
+ */
+public final class ChunkBitmap {
+	public static final int MAGIC = 0x57444C42;
+	public static final int VERSION = 1;
+
+	private static final int GENERATION_OFFSET = 8;
+	private static final int HEADER_SIZE = 28;
+	private static final int REGION_SIZE = 32 * 4;
+	/**
+	 * The most regions that a file can have along each axis, so that the file
+	 * size and chunk coordinates can't overflow.
+	 */
+	private static final int MAX_REGIONS = 1 << 11;
+
+	/**
+	 * The contents of the file; a {@link MappedByteBuffer} if this is
+	 * writable.
+	 */
+	private final ByteBuffer buffer;
+	private final boolean writable;
+	private final int minRegionX, minRegionZ;
+	private final int regionsX, regionsZ;
+
+	/**
+	 * Creates a bitmap, checking its header.
+	 *
+	 * @param buffer
+	 *            The file's contents, or only its header if the bitmap won't
+	 *            be used.
+	 * @param fileSize
+	 *            The size of the whole file.
+	 */
+	private ChunkBitmap(ByteBuffer buffer, long fileSize, boolean writable) {
+		if (fileSize < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+			throw new IllegalArgumentException("Not a chunk bitmap file!");
+		}
+		if (buffer.getInt(4) != VERSION) {
+			throw new IllegalArgumentException("Unsupported chunk bitmap "
+					+ "version " + buffer.getInt(4) + " (expected " + VERSION
+					+ ")");
+		}
+		this.buffer = buffer;
+		this.writable = writable;
+		this.minRegionX = buffer.getInt(12);
+		this.minRegionZ = buffer.getInt(16);
+		this.regionsX = buffer.getInt(20);
+		this.regionsZ = buffer.getInt(24);
+
+		checkSize(minRegionX, minRegionZ, regionsX, regionsZ);
+		long expectedSize = getFileSize(regionsX, regionsZ);
+		if (fileSize != expectedSize) {
+			throw new IllegalArgumentException("Chunk bitmap file is "
+					+ fileSize + " bytes, but " + expectedSize
+					+ " bytes were expected for " + regionsX + " by "
+					+ regionsZ + " regions");
+		}
+	}
+
+	/**
+	 * Opens an existing chunk bitmap file.
+	 *
+	 * @param file
+	 *            The file to open.
+	 * @param writable
+	 *            Whether {@link #set(int, int, boolean)} will be used.
+	 * @throws IOException
+	 *             If the file can't be read.
+	 * @throws IllegalArgumentException
+	 *             If the file isn't a valid chunk bitmap.
+	 */
+	public static ChunkBitmap open(File file, boolean writable)
+			throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file,
+				writable ? "rw" : "r")) {
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			ByteBuffer buffer;
+			if (writable) {
+				// The mapping stays valid after the channel is closed.
+				buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			} else {
+				if (size > Integer.MAX_VALUE) {
+					throw new IllegalArgumentException("Chunk bitmap file is "
+							+ "too large (" + size + " bytes)");
+				}
+				buffer = read(channel, (int) size);
+			}
+			return new ChunkBitmap(buffer, size, writable);
+		}
+	}
+
+	/**
+	 * Checks that the given file is a valid chunk bitmap, only reading its
+	 * header.
+	 *
+	 * @throws IOException
+	 *             If the file can't be read.
+	 * @throws IllegalArgumentException
+	 *             If the file isn't a valid chunk bitmap.
+	 */
+	public static void validate(File file) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			new ChunkBitmap(read(channel, (int) Math.min(size, HEADER_SIZE)),
+					size, false);
+		}
+	}
+
+	/**
+	 * Reads the generation of the given file without reading the rest of it,
+	 * to check whether it was changed.
+	 *
+	 * @throws IOException
+	 *             If the file can't be read.
+	 * @throws IllegalArgumentException
+	 *             If the file isn't a chunk bitmap.
+	 */
+	public static int readGeneration(File file) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			FileChannel channel = raf.getChannel();
+			ByteBuffer header = read(channel, (int) Math.min(channel.size(),
+					GENERATION_OFFSET + 4));
+			if (header.capacity() < GENERATION_OFFSET + 4
+					|| header.getInt(0) != MAGIC) {
+				throw new IllegalArgumentException("Not a chunk bitmap file!");
+			}
+			return header.getInt(GENERATION_OFFSET);
+		}
+	}
+
+	/**
+	 * Reads the first bytes of a file.
+	 */
+	private static ByteBuffer read(FileChannel channel, int size)
+			throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, buffer.position()) < 0) {
+				throw new EOFException("Chunk bitmap file ended after "
+						+ buffer.position() + " of " + size + " bytes");
+			}
+		}
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Creates a new chunk bitmap file, with no chunks set, and opens it for
+	 * writing.  If the file already exists, it is replaced.
+	 *
+	 * @param file
+	 *            The file to create.
+	 * @param minRegionX
+	 *            The X coordinate of the first region.
+	 * @param minRegionZ
+	 *            The Z coordinate of the first region.
+	 * @param regionsX
+	 *            The number of regions along the X axis.
+	 * @param regionsZ
+	 *            The number of regions along the Z axis.
+	 * @throws IOException
+	 *             If the file can't be written.
+	 */
+	public static ChunkBitmap create(File file, int minRegionX,
+			int minRegionZ, int regionsX, int regionsZ) throws IOException {
+		checkSize(minRegionX, minRegionZ, regionsX, regionsZ);
+
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(0);
+			raf.setLength(getFileSize(regionsX, regionsZ));
+			raf.writeInt(MAGIC);
+			raf.writeInt(VERSION);
+			raf.writeInt(0);
+			raf.writeInt(minRegionX);
+			raf.writeInt(minRegionZ);
+			raf.writeInt(regionsX);
+			raf.writeInt(regionsZ);
+		}
+		return open(file, true);
+	}
+
+	private static void checkSize(int minRegionX, int minRegionZ,
+			int regionsX, int regionsZ) {
+		if (regionsX <= 0 || regionsZ <= 0 || regionsX > MAX_REGIONS
+				|| regionsZ > MAX_REGIONS) {
+			throw new IllegalArgumentException("Invalid chunk bitmap size: "
+					+ regionsX + " by " + regionsZ + " regions (must be "
+					+ "between 1 and " + MAX_REGIONS + ")");
+		}
+		if (Math.abs((long) minRegionX) > (1 << 21)
+				|| Math.abs((long) minRegionZ) > (1 << 21)) {
+			throw new IllegalArgumentException("Invalid chunk bitmap "
+					+ "position: region " + minRegionX + ", " + minRegionZ);
+		}
+	}
+
+	private static long getFileSize(int regionsX, int regionsZ) {
+		return HEADER_SIZE + (long) regionsX * regionsZ * REGION_SIZE;
+	}
+
+	/**
+	 * Gets the generation, which changes whenever the bits are changed.
+	 */
+	public int getGeneration() {
+		return buffer.getInt(GENERATION_OFFSET);
+	}
+
+	/**
+	 * Increments the generation and writes the changes to disk.  Should be
+	 * called once after a batch of changes with
+	 * {@link #set(int, int, boolean)}.
+	 */
+	public void markChanged() {
+		checkWritable();
+		buffer.putInt(GENERATION_OFFSET, getGeneration() + 1);
+		((MappedByteBuffer) buffer).force();
+	}
+
+	/**
+	 * Checks if the given chunk can be downloaded.
+	 */
+	public boolean get(int chunkX, int chunkZ) {
+		int offset = getRowOffset(chunkX, chunkZ);
+		if (offset < 0) {
+			return false;
+		}
+		return (buffer.getInt(offset) & (1 << (chunkX & 31))) != 0;
+	}
+
+	/**
+	 * Sets whether the given chunk can be downloaded.  Players won't see the
+	 * change until {@link #markChanged()} is called.
+	 *
+	 * @throws IllegalArgumentException
+	 *             If the chunk isn't in this bitmap's area.
+	 */
+	public void set(int chunkX, int chunkZ, boolean value) {
+		checkWritable();
+		int offset = getRowOffset(chunkX, chunkZ);
+		if (offset < 0) {
+			throw new IllegalArgumentException("Chunk " + chunkX + ", "
+					+ chunkZ + " is outside of the bitmap's area!");
+		}
+		int row = buffer.getInt(offset);
+		if (value) {
+			row |= (1 << (chunkX & 31));
+		} else {
+			row &= ~(1 << (chunkX & 31));
+		}
+		buffer.putInt(offset, row);
+	}
+
+	/**
+	 * Creates ranges covering exactly the chunks that can be downloaded.
+	 * Each row of chunks is split into runs of set chunks, and runs with the
+	 * same X coordinates in consecutive rows are merged into one range.
+	 *
+	 * @param tag
+	 *            The tag for the created ranges.
+	 * @return An immutable list of ranges.
+	 */
+	public List<ProtectionRange> toRanges(String tag) {
+		List<ProtectionRange> ranges = new ArrayList<>();
+		int minChunkX = minRegionX << 5;
+		int minChunkZ = minRegionZ << 5;
+		int height = regionsZ << 5;
+
+		// Runs from the previous row that haven't ended yet, as
+		// {startX, endX, startZ}, in order of X.
+		List<int[]> open = new ArrayList<>();
+		List<int[]> next = new ArrayList<>();
+		for (int z = 0; z <= height; z++) {
+			int rowBase = (z < height) ? HEADER_SIZE
+					+ ((z >> 5) * regionsX * REGION_SIZE) + ((z & 31) * 4) : -1;
+
+			int i = 0;
+			int runStart = -1;
+			for (int regionX = 0; regionX <= regionsX; regionX++) {
+				int bits;
+				if (regionX < regionsX && rowBase >= 0) {
+					bits = buffer.getInt(rowBase + regionX * REGION_SIZE);
+				} else {
+					// Past the end, which ends any run
+					bits = 0;
+				}
+				int pos = 0;
+				while (pos < 32) {
+					int remaining = (runStart < 0 ? bits : ~bits) & (-1 << pos);
+					if (remaining == 0) {
+						break;
+					}
+					pos = Integer.numberOfTrailingZeros(remaining);
+					int x = (regionX << 5) + pos;
+					if (runStart < 0) {
+						runStart = x;
+						continue;
+					}
+
+					// The run from runStart to x - 1 just ended.  Close any
+					// open runs before it, and continue the one that
+					// matches it if there is one.
+					int runEnd = x - 1;
+					int startZ = z;
+					while (i < open.size() && open.get(i)[0] <= runStart) {
+						int[] run = open.get(i++);
+						if (run[0] == runStart && run[1] == runEnd) {
+							startZ = run[2];
+						} else {
+							addRange(ranges, tag, minChunkX, minChunkZ, run, z);
+						}
+					}
+					next.add(new int[] { runStart, runEnd, startZ });
+					runStart = -1;
+				}
+			}
+			while (i < open.size()) {
+				addRange(ranges, tag, minChunkX, minChunkZ, open.get(i++), z);
+			}
+
+			List<int[]> temp = open;
+			open = next;
+			next = temp;
+			next.clear();
+		}
+
+		return Collections.unmodifiableList(ranges);
+	}
+
+	/**
+	 * Adds a range for a run that started at <code>run[2]</code> and ended
+	 * on the row before <code>endZ</code>.
+	 */
+	private static void addRange(List<ProtectionRange> ranges, String tag,
+			int minChunkX, int minChunkZ, int[] run, int endZ) {
+		ranges.add(new ProtectionRange(tag, minChunkX + run[0], minChunkZ
+				+ run[2], minChunkX + run[1], minChunkZ + endZ - 1));
+	}
+
+	/**
+	 * Gets the offset of the int for the row with the given chunk, or -1 if
+	 * it's outside of the area.
+	 */
+	private int getRowOffset(int chunkX, int chunkZ) {
+		int regionX = (chunkX >> 5) - minRegionX;
+		int regionZ = (chunkZ >> 5) - minRegionZ;
+		if (regionX < 0 || regionZ < 0 || regionX >= regionsX
+				|| regionZ >= regionsZ) {
+			return -1;
+		}
+		return HEADER_SIZE + (regionZ * regionsX + regionX) * REGION_SIZE
+				+ (chunkZ & 31) * 4;
+	}
+
+	private void checkWritable() {
+		if (!writable) {
+			throw new IllegalStateException("This chunk bitmap was opened as "
+					+ "read-only!");
+		}
+	}
+}
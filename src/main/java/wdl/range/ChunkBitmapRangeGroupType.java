@@ -0,0 +1,82 @@
+package wdl.range;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.bukkit.Bukkit;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.plugin.Plugin;
+
+/**
+ * {@link IRangeProducer} that uses a {@link ChunkBitmap} file, for areas
+ * with too many chunks to list as ranges.  The file's path is relative to the
+ * owning plugin's folder.
+ */
+public final class ChunkBitmapRangeGroupType implements
+		IRangeGroupType<ChunkBitmapRangeProducer> {
+	private final Plugin owner;
+
+	/**
+	 * Creates a new {@link ChunkBitmapRangeGroupType}.
+	 *
+	 * @param owner
+	 *            The owning plugin.
+	 */
+	public ChunkBitmapRangeGroupType(Plugin owner) {
+		if (owner == null) {
+			throw new IllegalArgumentException("owner (owning plugin) must not be null!");
+		}
+		this.owner = owner;
+	}
+
+	@Override
+	public ChunkBitmapRangeProducer createRangeProducer(IRangeGroup group,
+			ConfigurationSection config) {
+		String tag = config.getString("tag");
+		File file = new File(owner.getDataFolder(), config.getString("file"));
+		String world = config.getString("world");
+
+		return new ChunkBitmapRangeProducer(group, owner, file, tag, world);
+	}
+
+	@Override
+	public boolean isValidConfig(ConfigurationSection config,
+			List<String> warnings, List<String> errors) {
+		boolean hasErrors = false;
+		if (!config.isString("file")) {
+			errors.add("'file' must be a String!");
+			hasErrors = true;
+		} else {
+			File file = new File(owner.getDataFolder(), config.getString("file"));
+			if (!file.isFile()) {
+				errors.add("'file' (" + file + ") does not exist!");
+				hasErrors = true;
+			} else {
+				try {
+					ChunkBitmap.validate(file);
+				} catch (IOException | IllegalArgumentException e) {
+					errors.add("'file' (" + file + ") is not a valid chunk "
+							+ "bitmap: " + e.getMessage());
+					hasErrors = true;
+				}
+			}
+		}
+		if (config.isSet("world") && !config.isString("world")) {
+			errors.add("'world' must be a String or left unset!");
+			hasErrors = true;
+		}
+
+		boolean isAllWorlds = (!config.isSet("world") || config.getString(
+				"world").equals("*"));
+		if (!isAllWorlds && Bukkit.getWorld(config.getString("world")) == null) {
+			warnings.add("'world' (" + config.getString("world") + ") " +
+					"corresponds with a world that currently does not exist!");
+		}
+
+		return !hasErrors;
+	}
+
+	@Override
+	public void dispose() { }
+}
@@ -0,0 +1,183 @@
+package wdl.range;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.logging.Level;
+
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitRunnable;
+import org.bukkit.scheduler.BukkitTask;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Range producer that gives players the chunks in a {@link ChunkBitmap} file.
+ * The ranges are only created again when the file changes, which is checked
+ * once a second; players in the world are then sent the changes, so the file
+ * can be edited without reloading.
+ * <br/>
+ * Checking the file and creating the ranges happens off of the main thread,
+ * as large files can have a lot of ranges.  The new ranges are then handed
+ * to the main thread and sent with {@link IRangeGroup#resyncRanges()}, so
+ * that players are only sent the ranges that changed.  Until the file is
+ * first read, no ranges are given.
+ */
+public final class ChunkBitmapRangeProducer implements IRangeProducer {
+	/**
+	 * How often the file is checked for changes, in ticks.
+	 */
+	private static final long CHECK_INTERVAL = 20;
+
+	private final IRangeGroup group;
+	private final Plugin owner;
+	/**
+	 * The bitmap file.
+	 */
+	public final File file;
+	/**
+	 * The tag to use for the created ranges.
+	 */
+	public final String tag;
+	/**
+	 * Should ranges be created for all worlds?
+	 */
+	public final boolean appliesToAllWorlds;
+	/**
+	 * Name of the world that the created ranges are in.  Will be 'null' if
+	 * {@link #appliesToAllWorlds} is false.
+	 */
+	public final String worldName;
+
+	/**
+	 * The length, modification time, and generation of the file when the
+	 * ranges were last created.  Only used by the check task.
+	 */
+	private long loadedLength = -1, loadedModified = -1;
+	private int loadedGeneration;
+	/**
+	 * Has a warning been logged about the file since it was last read
+	 * successfully?  Only used by the check task.
+	 */
+	private boolean warned = false;
+	/**
+	 * The current ranges.  Only used on the main thread.
+	 */
+	private List<ProtectionRange> ranges = ImmutableList.of();
+	private volatile boolean disposed = false;
+	private final BukkitTask checkTask;
+
+	/**
+	 * Creates a new {@link ChunkBitmapRangeProducer}.
+	 *
+	 * @param group
+	 *            The owning range group.
+	 * @param owner
+	 *            The owning plugin, used to check for changes.
+	 * @param file
+	 *            The bitmap file.
+	 * @param tag
+	 *            The tag to use for the created ranges.
+	 * @param worldName
+	 *            Name of the world that the created ranges are in. May be null
+	 *            or "*", in which case it is all worlds.
+	 */
+	public ChunkBitmapRangeProducer(IRangeGroup group, Plugin owner,
+			File file, String tag, String worldName) {
+		this.group = group;
+		this.owner = owner;
+		this.file = file;
+		this.tag = tag;
+		if (worldName == null || worldName.equals("*")) {
+			this.appliesToAllWorlds = true;
+			this.worldName = null;
+		} else {
+			this.appliesToAllWorlds = false;
+			this.worldName = worldName;
+		}
+
+		this.checkTask = new BukkitRunnable() {
+			@Override
+			public void run() {
+				checkForChanges();
+			}
+		}.runTaskTimerAsynchronously(owner, 0, CHECK_INTERVAL);
+	}
+
+	@Override
+	public List<ProtectionRange> getInitialRanges(Player player) {
+		if (appliesTo(player.getWorld())) {
+			return ranges;
+		}
+		return ImmutableList.of();
+	}
+
+	/**
+	 * Creates the ranges again if the file was changed, and hands them to
+	 * the main thread.  Runs on an async task.
+	 */
+	private synchronized void checkForChanges() {
+		try {
+			long length = file.length();
+			long modified = file.lastModified();
+			if (length == loadedLength && modified == loadedModified
+					&& ChunkBitmap.readGeneration(file) == loadedGeneration) {
+				return;
+			}
+
+			ChunkBitmap bitmap = ChunkBitmap.open(file, false);
+			final List<ProtectionRange> newRanges = ImmutableList.copyOf(
+					bitmap.toRanges(tag));
+			loadedLength = length;
+			loadedModified = modified;
+			loadedGeneration = bitmap.getGeneration();
+			warned = false;
+
+			if (!disposed) {
+				owner.getServer().getScheduler().runTask(owner, new Runnable() {
+					@Override
+					public void run() {
+						setRanges(newRanges);
+					}
+				});
+			}
+		} catch (IOException | IllegalArgumentException e) {
+			if (!warned) {
+				owner.getLogger().log(Level.WARNING, "Failed to read chunk "
+						+ "bitmap " + file + " for group "
+						+ group.getGroupName() + "; its old ranges will "
+						+ "still be used.", e);
+				warned = true;
+			}
+		}
+	}
+
+	/**
+	 * Replaces the ranges, and sends the changes to players.  Runs on the
+	 * main thread.
+	 */
+	private void setRanges(List<ProtectionRange> newRanges) {
+		if (disposed) {
+			return;
+		}
+		ranges = newRanges;
+		group.resyncRanges();
+	}
+
+	private boolean appliesTo(World world) {
+		return appliesToAllWorlds || world.getName().equals(worldName);
+	}
+
+	@Override
+	public IRangeGroup getRangeGroup() {
+		return this.group;
+	}
+
+	@Override
+	public void dispose() {
+		disposed = true;
+		checkTask.cancel();
+	}
+}
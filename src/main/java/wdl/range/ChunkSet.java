@@ -0,0 +1,276 @@
+package wdl.range;
+
+import java.util.Arrays;
+
+/**
+ * A set of chunk positions, stored as packed longs in an open-addressing hash
+ * table.  Unlike a <code>Set&lt;Point&gt;</code>, nothing is allocated when
+ * adding or checking a chunk, other than when the table grows.
+ * <br/>
+ * This class is not thread-safe.
+ */
+public final class ChunkSet {
+	/**
+	 * Value used for empty slots.  The key with this value is tracked
+	 * separately in {@link #containsEmptyKey}.
+	 */
+	private static final long EMPTY = 0L;
+	/**
+	 * Largest fraction of the table that may be used before it grows.
+	 */
+	private static final float LOAD_FACTOR = 0.6f;
+
+	private long[] keys;
+	private boolean containsEmptyKey = false;
+	/**
+	 * Number of keys, including the {@link #EMPTY} key.
+	 */
+	private int size = 0;
+	/**
+	 * Number of keys in {@link #keys} that causes it to grow.
+	 */
+	private int growAt;
+
+	/**
+	 * Creates a new, empty ChunkSet.
+	 */
+	public ChunkSet() {
+		this(16);
+	}
+
+	/**
+	 * Creates a new, empty ChunkSet that can hold the given number of chunks
+	 * without growing.
+	 *
+	 * @param expectedSize The number of chunks expected.
+	 */
+	public ChunkSet(int expectedSize) {
+		if (expectedSize < 0) {
+			throw new IllegalArgumentException("expectedSize must not be "
+					+ "negative!  (Got " + expectedSize + ")");
+		}
+		int capacity = 16;
+		while (capacity * LOAD_FACTOR < expectedSize && capacity < (1 << 30)) {
+			capacity <<= 1;
+		}
+		this.keys = new long[capacity];
+		this.growAt = (int) (capacity * LOAD_FACTOR);
+	}
+
+	/**
+	 * Packs a chunk position into a single long.  The packed values sort by
+	 * z and then by x, so a sorted array of them is in row order.
+	 */
+	public static long pack(int x, int z) {
+		// Flipping the sign bit of x makes it sort correctly as unsigned.
+		return ((long) z << 32) | ((x ^ Integer.MIN_VALUE) & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Gets the x coordinate from a value created by {@link #pack(int, int)}.
+	 */
+	public static int unpackX(long packed) {
+		return (int) packed ^ Integer.MIN_VALUE;
+	}
+
+	/**
+	 * Gets the z coordinate from a value created by {@link #pack(int, int)}.
+	 */
+	public static int unpackZ(long packed) {
+		return (int) (packed >> 32);
+	}
+
+	/**
+	 * Adds the given chunk.
+	 *
+	 * @return true if the chunk was not already in this set.
+	 */
+	public boolean add(int x, int z) {
+		return add(pack(x, z));
+	}
+
+	/**
+	 * Adds the given packed chunk.
+	 *
+	 * @return true if the chunk was not already in this set.
+	 */
+	public boolean add(long key) {
+		if (key == EMPTY) {
+			if (containsEmptyKey) {
+				return false;
+			}
+			containsEmptyKey = true;
+			size++;
+			return true;
+		}
+
+		int mask = keys.length - 1;
+		int slot = hash(key) & mask;
+		while (keys[slot] != EMPTY) {
+			if (keys[slot] == key) {
+				return false;
+			}
+			slot = (slot + 1) & mask;
+		}
+		keys[slot] = key;
+		size++;
+		if (size - (containsEmptyKey ? 1 : 0) > growAt) {
+			rehash(keys.length << 1);
+		}
+		return true;
+	}
+
+	/**
+	 * Checks if the given chunk is in this set.
+	 */
+	public boolean contains(int x, int z) {
+		return contains(pack(x, z));
+	}
+
+	/**
+	 * Checks if the given packed chunk is in this set.
+	 */
+	public boolean contains(long key) {
+		if (key == EMPTY) {
+			return containsEmptyKey;
+		}
+		return indexOf(key) >= 0;
+	}
+
+	/**
+	 * Removes the given chunk.
+	 *
+	 * @return true if the chunk was in this set.
+	 */
+	public boolean remove(int x, int z) {
+		return remove(pack(x, z));
+	}
+
+	/**
+	 * Removes the given packed chunk.
+	 *
+	 * @return true if the chunk was in this set.
+	 */
+	public boolean remove(long key) {
+		if (key == EMPTY) {
+			if (!containsEmptyKey) {
+				return false;
+			}
+			containsEmptyKey = false;
+			size--;
+			return true;
+		}
+
+		int slot = indexOf(key);
+		if (slot < 0) {
+			return false;
+		}
+		size--;
+
+		// Shift later entries back so that no lookup skips over the gap.
+		int mask = keys.length - 1;
+		int gap = slot;
+		int next = (gap + 1) & mask;
+		while (keys[next] != EMPTY) {
+			int ideal = hash(keys[next]) & mask;
+			// Can the entry at next move into the gap?  Only if its ideal
+			// slot is not between the gap and next (cyclically).
+			if (((next - ideal) & mask) >= ((next - gap) & mask)) {
+				keys[gap] = keys[next];
+				gap = next;
+			}
+			next = (next + 1) & mask;
+		}
+		keys[gap] = EMPTY;
+		return true;
+	}
+
+	/**
+	 * Gets the number of chunks in this set.
+	 */
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Removes all chunks, keeping the current capacity.
+	 */
+	public void clear() {
+		Arrays.fill(keys, EMPTY);
+		containsEmptyKey = false;
+		size = 0;
+	}
+
+	/**
+	 * Gets all of the packed chunks in this set, in no particular order.
+	 */
+	public long[] toArray() {
+		long[] result = new long[size];
+		int i = 0;
+		if (containsEmptyKey) {
+			result[i++] = EMPTY;
+		}
+		for (long key : keys) {
+			if (key != EMPTY) {
+				result[i++] = key;
+			}
+		}
+		return result;
+	}
+
+	private int indexOf(long key) {
+		int mask = keys.length - 1;
+		int slot = hash(key) & mask;
+		while (keys[slot] != EMPTY) {
+			if (keys[slot] == key) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	private void rehash(int newCapacity) {
+		long[] oldKeys = keys;
+		keys = new long[newCapacity];
+		growAt = (int) (newCapacity * LOAD_FACTOR);
+		int mask = newCapacity - 1;
+		for (long key : oldKeys) {
+			if (key != EMPTY) {
+				int slot = hash(key) & mask;
+				while (keys[slot] != EMPTY) {
+					slot = (slot + 1) & mask;
+				}
+				keys[slot] = key;
+			}
+		}
+	}
+
+	/**
+	 * Spreads the bits of a packed chunk, as neighboring chunks only differ
+	 * in their low bits.
+	 */
+	private static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder("ChunkSet[");
+		boolean first = true;
+		for (long key : toArray()) {
+			if (!first) {
+				builder.append(", ");
+			}
+			first = false;
+			builder.append('(').append(unpackX(key)).append(", ")
+					.append(unpackZ(key)).append(')');
+		}
+		return builder.append(']').toString();
+	}
+}
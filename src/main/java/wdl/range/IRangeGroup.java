@@ -190,6 +190,17 @@ public interface IRangeGroup {
 	 */
 	public abstract boolean isWDLPlayer(Player player);
 
+	/**
+	 * Sends every player the changes to their ranges in this range group,
+	 * using {@link IRangeProducer#getInitialRanges(Player)} for the ranges
+	 * that they should have.  Only the ranges that differ from what the
+	 * player was last sent are sent (and, if ranges are only sent near
+	 * players, only the nearby ones), so this is much cheaper than calling
+	 * {@link #setRanges(Player, List)} for every player when a producer's
+	 * ranges are replaced.  This must be called on the main thread.
+	 */
+	public abstract void resyncRanges();
+
 	/**
 	 * Disposes of this {@link IRangeGroup}.
 	 * 
@@ -27,7 +27,32 @@ public final class ProtectionRange {
 	 * (and the same for y).  These are chunk coordinates.
 	 */
 	public final int x1, z1, x2, z2;
-	
+
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + tag.hashCode();
+		result = prime * result + x1;
+		result = prime * result + z1;
+		result = prime * result + x2;
+		result = prime * result + z2;
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof ProtectionRange)) {
+			return false;
+		}
+		ProtectionRange other = (ProtectionRange) obj;
+		return x1 == other.x1 && z1 == other.z1 && x2 == other.x2
+				&& z2 == other.z2 && tag.equals(other.tag);
+	}
+
 	@Override
 	public String toString() {
 		return "Chunks from (" + x1 + ", " + z1 + ") to (" + x2 + ", " + z2
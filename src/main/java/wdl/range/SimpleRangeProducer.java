@@ -1,6 +1,6 @@
 package wdl.range;
 
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import org.bukkit.entity.Player;
@@ -27,6 +27,11 @@ public final class SimpleRangeProducer implements IRangeProducer {
 	 * {@link #appliesToAllWorlds} is false.
 	 */
 	public final String worldName;
+	/**
+	 * The ranges that are given to players in the world(s) this applies to.
+	 * Created once, since they never change.
+	 */
+	private final List<ProtectionRange> ranges;
 	
 	/**
 	 * Creates a new {@link SimpleRangeProducer}.
@@ -62,15 +67,23 @@ public final class SimpleRangeProducer implements IRangeProducer {
 			this.appliesToAllWorlds = false;
 			this.worldName = worldName;
 		}
+		this.ranges = Collections.singletonList(new ProtectionRange(tag, x1,
+				z1, x2, z2));
 	}
 	
 	@Override
 	public List<ProtectionRange> getInitialRanges(Player player) {
-		List<ProtectionRange> ranges = new ArrayList<>();
-		
 		if (appliesToAllWorlds || player.getWorld().getName().equals(worldName)) {
-			ranges.add(new ProtectionRange(tag, x1, z1, x2, z2));
+			return ranges;
 		}
+		return Collections.emptyList();
+	}
+	
+	/**
+	 * Gets the ranges that are given to players in the world(s) this applies
+	 * to; the same for every player.  The returned list is immutable.
+	 */
+	public List<ProtectionRange> getRanges() {
 		return ranges;
 	}
 	
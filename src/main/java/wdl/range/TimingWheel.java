@@ -0,0 +1,220 @@
+package wdl.range;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitRunnable;
+import org.bukkit.scheduler.BukkitTask;
+
+/**
+ * A hashed timing wheel that runs things after a number of server ticks.
+ * Unlike scheduling a separate task for each one, scheduling and cancelling
+ * are O(1), and only a single task is used (which only runs while something
+ * is scheduled).
+ * <br/>
+ * Everything that expires in the same tick is handled together: each
+ * {@link Handler} is called once per tick, with all of its values that
+ * expired in that tick.  Only used on the main thread.
+ */
+public final class TimingWheel {
+	/**
+	 * Handles values that have expired.
+	 */
+	public static interface Handler<T> {
+		/**
+		 * Called with all of the values for this handler that expired in a
+		 * single tick, in the order they were scheduled.
+		 */
+		public abstract void onExpired(List<T> values);
+	}
+
+	/**
+	 * A scheduled value, which can be cancelled.
+	 */
+	public static final class Timeout {
+		private final long deadline;
+		private final Handler<?> handler;
+		private final Object value;
+		/**
+		 * Links to the other timeouts in the same bucket.
+		 */
+		private Timeout prev, next;
+		private boolean scheduled = true;
+		private final TimingWheel wheel;
+
+		private Timeout(TimingWheel wheel, long deadline, Handler<?> handler,
+				Object value) {
+			this.wheel = wheel;
+			this.deadline = deadline;
+			this.handler = handler;
+			this.value = value;
+		}
+
+		/**
+		 * Cancels this timeout, if it hasn't expired yet.
+		 *
+		 * @return True if it was cancelled; false if it had already expired or
+		 *         been cancelled.
+		 */
+		public boolean cancel() {
+			if (!scheduled) {
+				return false;
+			}
+			wheel.remove(this);
+			return true;
+		}
+
+		/**
+		 * Is this still waiting to expire?
+		 */
+		public boolean isScheduled() {
+			return scheduled;
+		}
+	}
+
+	/**
+	 * Number of buckets; must be a power of 2.  Timeouts further away than
+	 * this many ticks stay in their bucket for more than one rotation.
+	 */
+	private static final int WHEEL_SIZE = 512;
+	private static final int MASK = WHEEL_SIZE - 1;
+
+	private final Plugin owner;
+	/**
+	 * The first timeout in each bucket.
+	 */
+	private final Timeout[] buckets = new Timeout[WHEEL_SIZE];
+	/**
+	 * The number of ticks that the wheel has turned.
+	 */
+	private long currentTick = 0;
+	/**
+	 * The number of timeouts that are scheduled.
+	 */
+	private int size = 0;
+	/**
+	 * The task that turns the wheel, or null if nothing is scheduled.
+	 */
+	private BukkitTask task;
+
+	/**
+	 * Creates a new {@link TimingWheel}.
+	 *
+	 * @param owner
+	 *            The owning plugin, used to run the task.
+	 */
+	public TimingWheel(Plugin owner) {
+		if (owner == null) {
+			throw new IllegalArgumentException("owner (owning plugin) must not be null!");
+		}
+		this.owner = owner;
+	}
+
+	/**
+	 * Schedules a value to expire after the given number of ticks.
+	 *
+	 * @param ticks
+	 *            The number of ticks; values less than 1 expire on the next
+	 *            tick.
+	 * @param handler
+	 *            The handler to give the value to.
+	 * @param value
+	 *            The value.
+	 * @return A timeout that can be used to cancel the expiry.
+	 */
+	public <T> Timeout schedule(long ticks, Handler<T> handler, T value) {
+		if (handler == null) {
+			throw new IllegalArgumentException("handler must not be null!");
+		}
+		Timeout timeout = new Timeout(this, currentTick + Math.max(ticks, 1),
+				handler, value);
+		int bucket = (int) (timeout.deadline & MASK);
+		timeout.next = buckets[bucket];
+		if (timeout.next != null) {
+			timeout.next.prev = timeout;
+		}
+		buckets[bucket] = timeout;
+
+		if (size++ == 0) {
+			task = new BukkitRunnable() {
+				@Override
+				public void run() {
+					tick();
+				}
+			}.runTaskTimer(owner, 1, 1);
+		}
+		return timeout;
+	}
+
+	/**
+	 * Cancels everything that is scheduled.
+	 */
+	public void clear() {
+		for (int i = 0; i < WHEEL_SIZE; i++) {
+			while (buckets[i] != null) {
+				remove(buckets[i]);
+			}
+		}
+	}
+
+	/**
+	 * Unlinks a scheduled timeout, and stops the task if nothing is left.
+	 */
+	private void remove(Timeout timeout) {
+		if (timeout.prev != null) {
+			timeout.prev.next = timeout.next;
+		} else {
+			buckets[(int) (timeout.deadline & MASK)] = timeout.next;
+		}
+		if (timeout.next != null) {
+			timeout.next.prev = timeout.prev;
+		}
+		timeout.prev = timeout.next = null;
+		timeout.scheduled = false;
+
+		if (--size == 0 && task != null) {
+			task.cancel();
+			task = null;
+		}
+	}
+
+	/**
+	 * Turns the wheel by one tick, and handles the expired timeouts.
+	 */
+	@SuppressWarnings("unchecked")
+	private void tick() {
+		currentTick++;
+
+		// Handled in the order they were scheduled, which is the reverse of
+		// the bucket's order.
+		List<Timeout> expired = new ArrayList<>();
+		for (Timeout timeout = buckets[(int) (currentTick & MASK)]; timeout != null;) {
+			Timeout next = timeout.next;
+			if (timeout.deadline <= currentTick) {
+				remove(timeout);
+				expired.add(timeout);
+			}
+			timeout = next;
+		}
+		if (expired.isEmpty()) {
+			return;
+		}
+
+		Map<Handler<?>, List<Object>> byHandler = new LinkedHashMap<>();
+		for (int i = expired.size() - 1; i >= 0; i--) {
+			Timeout timeout = expired.get(i);
+			List<Object> values = byHandler.get(timeout.handler);
+			if (values == null) {
+				values = new ArrayList<>();
+				byHandler.put(timeout.handler, values);
+			}
+			values.add(timeout.value);
+		}
+		for (Map.Entry<Handler<?>, List<Object>> e : byHandler.entrySet()) {
+			((Handler<Object>) e.getKey()).onExpired(e.getValue());
+		}
+	}
+}
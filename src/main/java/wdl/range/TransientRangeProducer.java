@@ -3,57 +3,113 @@ package wdl.range;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
-import java.util.logging.Level;
 
 import org.bukkit.Bukkit;
 import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.HandlerList;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerQuitEvent;
 import org.bukkit.plugin.Plugin;
-import org.bukkit.scheduler.BukkitRunnable;
+
+import com.google.common.collect.ImmutableList;
 
 /**
  * Basic RangeProducer that allows for adding temporary ranges to a player.
  * 
- * This data is NOT stored anywhere and will disappear on a server reload.
+ * The ranges are not saved by this producer, and disappear on a server
+ * reload unless whatever gave them out restores them with
+ * {@link #restoreRanges(UUID, long, List)} (WDLCompanion does this for
+ * accepted permission requests, from its request journal).
+ * 
+ * Ranges with a duration are kept until they expire, even if the player
+ * leaves, so that they still apply if the player rejoins before then.  Ranges
+ * without one are removed when the player leaves, unless the player still
+ * has ranges waiting to expire; then they are kept until the last of those
+ * expire.
  * 
- * TODO: This creates a lot of tasks - is that a bad thing?
+ * The same range can be given to a player more than once (for instance by a
+ * timed grant that overlaps an untimed one).  It is only sent to the player
+ * once, and is kept until every grant of it has expired or it is removed
+ * with {@link #removeRanges(Player, List)}.
  */
-public class TransientRangeProducer implements IRangeProducer {
+public class TransientRangeProducer implements IRangeProducer, Listener {
 	private final IRangeGroup rangeGroup;
 	/**
 	 * Owning plugin.
 	 */
 	private final Plugin owner;
 	/**
-	 * Current ranges.
+	 * Current ranges.  Players without any ranges are not present.
+	 */
+	private final transient Map<UUID, PlayerRanges> playerRanges = new HashMap<>();
+	/**
+	 * Timing wheel used to remove ranges once they expire.
+	 */
+	private final TimingWheel expiryWheel;
+	/**
+	 * Expiries of ranges that are currently scheduled.
+	 */
+	private final Set<TimingWheel.Timeout> activeExpiries = new HashSet<>();
+	/**
+	 * The most ranges a single player can have, or -1 for no limit.
 	 */
-	private final transient Map<UUID, List<ProtectionRange>> playerRanges = new HashMap<>();
+	private int maxRangesPerPlayer = -1;
 	
 	/**
 	 * Creates a new {@link TransientRangeProducer}.
 	 * 
+	 * This creates a {@link TimingWheel} just for this producer, which runs
+	 * its own task while any of its ranges are waiting to expire.  Plugins
+	 * that create several producers should share a single wheel with
+	 * {@link #TransientRangeProducer(IRangeGroup, Plugin, TimingWheel)}.
+	 * 
 	 * @param rangeGroup The range group.
 	 * @param owner The owning plugin - used to create events.
 	 */
 	public TransientRangeProducer(IRangeGroup rangeGroup, Plugin owner) {
+		this(rangeGroup, owner, owner == null ? null : new TimingWheel(owner));
+	}
+	
+	/**
+	 * Creates a new {@link TransientRangeProducer} that shares the given
+	 * timing wheel.
+	 * 
+	 * @param rangeGroup The range group.
+	 * @param owner The owning plugin - used to create events.
+	 * @param expiryWheel The timing wheel to remove expired ranges with.
+	 */
+	public TransientRangeProducer(IRangeGroup rangeGroup, Plugin owner,
+			TimingWheel expiryWheel) {
 		if (rangeGroup == null) {
 			throw new IllegalArgumentException("rangeGroup must not be null!");
 		}
 		if (owner == null) {
 			throw new IllegalArgumentException("owner (owning plugin) must not be null!");
 		}
+		if (expiryWheel == null) {
+			throw new IllegalArgumentException("expiryWheel must not be null!");
+		}
 		this.rangeGroup = rangeGroup;
 		this.owner = owner;
+		this.expiryWheel = expiryWheel;
+
+		owner.getServer().getPluginManager().registerEvents(this, owner);
 	}
 	
 	@Override
 	public List<ProtectionRange> getInitialRanges(Player player) {
 		if (playerRanges.containsKey(player.getUniqueId())) {
-			return playerRanges.get(player.getUniqueId());
+			return playerRanges.get(player.getUniqueId()).toList();
 		} else {
-			return new ArrayList<>();
+			return ImmutableList.of();
 		}
 	}
 	
@@ -62,36 +118,44 @@ public class TransientRangeProducer implements IRangeProducer {
 		return rangeGroup;
 	}
 	
+	/**
+	 * Sets the most ranges that a single player can have at once.  Ranges
+	 * that are added past this limit are ignored (and a warning is logged).
+	 * Ranges that players already have are kept.
+	 *
+	 * @param maxRangesPerPlayer The limit, or -1 for no limit.
+	 */
+	public void setMaxRangesPerPlayer(int maxRangesPerPlayer) {
+		this.maxRangesPerPlayer = (maxRangesPerPlayer < 0 ? -1
+				: maxRangesPerPlayer);
+	}
+
 	/**
 	 * Gives the given player download permission in the given ranges until
-	 * the next server reload.
+	 * they leave or the next server reload.
 	 * 
 	 * @param player The player to give the ranges to.
 	 * @param ranges The ranges.
 	 */
 	public void addRanges(Player player, ProtectionRange... ranges) {
-		rangeGroup.addRanges(player, ranges);
-		if (!this.playerRanges.containsKey(player.getUniqueId())) {
-			this.playerRanges.put(player.getUniqueId(), new ArrayList<ProtectionRange>());
-		}
-		this.playerRanges.get(player.getUniqueId()).addAll(
-				Arrays.asList(ranges));
+		addRanges(player, Arrays.asList(ranges));
 	}
 	
 	/**
 	 * Gives the given player download permission in the given ranges until
-	 * the next server reload.
+	 * they leave or the next server reload.
 	 * 
 	 * @param player The player to give the ranges to.
 	 * @param ranges The ranges.
 	 */
 	public void addRanges(Player player, List<ProtectionRange> ranges) {
-		rangeGroup.addRanges(player, ranges);
-		
-		if (!this.playerRanges.containsKey(player.getUniqueId())) {
-			this.playerRanges.put(player.getUniqueId(), new ArrayList<ProtectionRange>());
+		List<ProtectionRange> granted = new ArrayList<>(ranges.size());
+		List<ProtectionRange> added = getPlayerRanges(player).addAll(ranges,
+				getLimit(player, ranges), granted);
+		dropIfEmpty(player.getUniqueId());
+		if (!added.isEmpty()) {
+			rangeGroup.addRanges(player, added);
 		}
-		this.playerRanges.get(player.getUniqueId()).addAll(ranges);
 	}
 	
 	/**
@@ -102,17 +166,7 @@ public class TransientRangeProducer implements IRangeProducer {
 	 * @param ranges The ranges.
 	 */
 	public void addRanges(Player player, long ticks, ProtectionRange... ranges) {
-		rangeGroup.addRanges(player, ranges);
-		
-		if (!this.playerRanges.containsKey(player.getUniqueId())) {
-			this.playerRanges.put(player.getUniqueId(), new ArrayList<ProtectionRange>());
-		}
-		this.playerRanges.get(player.getUniqueId()).addAll(Arrays.asList(ranges));
-		
-		// Queue later removal.
-		RemoveExpiredRangesTask task = new RemoveExpiredRangesTask(player, ranges);
-		task.runTaskLater(owner, ticks);
-		activeRemovalTasks.add(task);
+		addRanges(player, ticks, Arrays.asList(ranges));
 	}
 	
 	/**
@@ -123,30 +177,47 @@ public class TransientRangeProducer implements IRangeProducer {
 	 * @param ranges The ranges.
 	 */
 	public void addRanges(Player player, long ticks, List<ProtectionRange> ranges) {
-		rangeGroup.addRanges(player, ranges);
-		
-		if (!this.playerRanges.containsKey(player.getUniqueId())) {
-			this.playerRanges.put(player.getUniqueId(), new ArrayList<ProtectionRange>());
+		List<ProtectionRange> granted = new ArrayList<>(ranges.size());
+		List<ProtectionRange> added = getPlayerRanges(player).addAll(ranges,
+				getLimit(player, ranges), granted);
+		if (granted.isEmpty()) {
+			dropIfEmpty(player.getUniqueId());
+			return;
+		}
+		if (!added.isEmpty()) {
+			rangeGroup.addRanges(player, added);
 		}
-		this.playerRanges.get(player.getUniqueId()).addAll(ranges);
 		
 		// Queue later removal.
-		RemoveExpiredRangesTask task = new RemoveExpiredRangesTask(player, ranges);
-		task.runTaskLater(owner, ticks);
-		activeRemovalTasks.add(task);
+		scheduleExpiry(player.getUniqueId(), ticks, granted);
+	}
+
+	/**
+	 * Gives the player with the given ID download permission in the given
+	 * ranges until the given number of ticks have elapsed, without sending
+	 * the ranges to them.  This is used to restore ranges from before a
+	 * restart, before players are sent their initial ranges.
+	 *
+	 * @param uuid The ID of the player to give the ranges to.
+	 * @param ranges The ranges.
+	 */
+	public void restoreRanges(UUID uuid, long ticks, List<ProtectionRange> ranges) {
+		List<ProtectionRange> granted = new ArrayList<>(ranges.size());
+		getPlayerRanges(uuid).addAll(ranges, Integer.MAX_VALUE, granted);
+		if (granted.isEmpty()) {
+			dropIfEmpty(uuid);
+			return;
+		}
+		scheduleExpiry(uuid, ticks, granted);
 	}
 	
 	@Override
 	public void dispose() {
-		for (RemoveExpiredRangesTask task : activeRemovalTasks) {
-			try {
-				task.cancel();
-			} catch (Exception e) {
-				owner.getLogger().log(Level.WARNING,
-						"Failed to cancel task " + task + " while disposing!",
-						e);
-			}
+		HandlerList.unregisterAll(this);
+		for (TimingWheel.Timeout timeout : activeExpiries) {
+			timeout.cancel();
 		}
+		activeExpiries.clear();
 	}
 	
 	/**
@@ -165,8 +236,9 @@ public class TransientRangeProducer implements IRangeProducer {
 	/**
 	 * Removes the specified player's download permission in the given ranges.
 	 * 
-	 * This removes ranges that were previously added; it <b>cannot</b> be used
-	 * to 'blacklist' specific ranges.
+	 * This removes ranges that were previously added, along with every other
+	 * grant of them, and stops them from expiring later; it <b>cannot</b> be
+	 * used to 'blacklist' specific ranges.
 	 * 
 	 * @param player The player remove the ranges from.
 	 * @param ranges The ranges.
@@ -175,43 +247,299 @@ public class TransientRangeProducer implements IRangeProducer {
 		if (!this.playerRanges.containsKey(player.getUniqueId())) {
 			return;
 		}
-		this.playerRanges.get(player.getUniqueId()).removeAll(ranges);
-		rangeGroup.setRanges(player, playerRanges.get(player.getUniqueId()));
+		PlayerRanges current = this.playerRanges.get(player.getUniqueId());
+		current.removeAll(ranges);
+		removeFromExpiries(current, ranges);
+		rangeGroup.setRanges(player, current.toList());
+		dropIfEmpty(player.getUniqueId());
+	}
+
+	@EventHandler
+	public void onPlayerQuit(PlayerQuitEvent event) {
+		UUID uuid = event.getPlayer().getUniqueId();
+		PlayerRanges current = playerRanges.get(uuid);
+		if (current != null && current.expiries.isEmpty()) {
+			// Nothing is waiting to expire, so it's all untimed ranges.
+			playerRanges.remove(uuid);
+		}
 	}
 	
 	/**
-	 * List of {@link RemoveExpiredRangesTask}s that are currently running.
+	 * Gets the ranges for the given player, creating them if needed.
 	 */
-	private List<RemoveExpiredRangesTask> activeRemovalTasks = new ArrayList<>();
+	private PlayerRanges getPlayerRanges(Player player) {
+		return getPlayerRanges(player.getUniqueId());
+	}
+
+	/**
+	 * Gets the ranges for the player with the given ID, creating them if
+	 * needed.
+	 */
+	private PlayerRanges getPlayerRanges(UUID uuid) {
+		PlayerRanges ranges = this.playerRanges.get(uuid);
+		if (ranges == null) {
+			ranges = new PlayerRanges();
+			this.playerRanges.put(uuid, ranges);
+		}
+		return ranges;
+	}
 	
 	/**
-	 * Task that removes all of the given ranges; can be used to remove ranges
-	 * after a delay.
+	 * Removes the given player's entry if they don't have any ranges.
+	 */
+	private void dropIfEmpty(UUID uuid) {
+		PlayerRanges ranges = this.playerRanges.get(uuid);
+		if (ranges != null && ranges.isEmpty() && ranges.expiries.isEmpty()) {
+			this.playerRanges.remove(uuid);
+		}
+	}
+
+	/**
+	 * Gets the number of new ranges that can be given to the player, logging
+	 * a warning if that's less than the number that are being added.
+	 */
+	private int getLimit(Player player, List<ProtectionRange> ranges) {
+		if (maxRangesPerPlayer < 0) {
+			return Integer.MAX_VALUE;
+		}
+		int limit = maxRangesPerPlayer - getPlayerRanges(player).size();
+		if (ranges.size() > limit) {
+			owner.getLogger().warning("Only giving " + player.getName() + " "
+					+ Math.max(limit, 0) + " of " + ranges.size()
+					+ " new ranges in group " + rangeGroup.getGroupName()
+					+ ", as they can't have more than " + maxRangesPerPlayer
+					+ " ranges.");
+		}
+		return limit;
+	}
+
+	/**
+	 * The ranges for a single player.  Single-chunk ranges, which claim
+	 * plugins send in large numbers, are kept in a {@link ChunkSet} per tag,
+	 * and other ranges in a hash set, so adding and removing them doesn't
+	 * need to scan a list.  Ranges are compared by value, and each range is
+	 * only stored once, but every grant of a range is counted so that it is
+	 * only removed once all of them have expired.
 	 */
-	private class RemoveExpiredRangesTask extends BukkitRunnable {
-		private final UUID uuid;
-		private final List<ProtectionRange> rangesToRemove;
+	private static class PlayerRanges {
+		private final Map<String, ChunkSet> chunksByTag = new HashMap<>();
+		private final Set<ProtectionRange> largerRanges = new LinkedHashSet<>();
+		/**
+		 * The number of grants of each range past the first.  Ranges that
+		 * were only given once, which is nearly all of them, aren't present.
+		 */
+		private final Map<ProtectionRange, Integer> extraGrants = new HashMap<>();
+		private int size = 0;
+		/**
+		 * The ranges as a list, created when it is first needed after they
+		 * change.
+		 */
+		private ImmutableList<ProtectionRange> list;
+		/**
+		 * The scheduled expiries for this player's ranges.
+		 */
+		public final Set<RangeExpiry> expiries = new HashSet<>();
 		
-		public RemoveExpiredRangesTask(Player player, ProtectionRange... ranges) {
-			this.uuid = player.getUniqueId();
-			this.rangesToRemove = Arrays.asList(ranges);
+		/**
+		 * Grants the given ranges, up to the given number of new ones.
+		 *
+		 * @param granted
+		 *            Filled with the ranges that were granted.  This includes
+		 *            ones that this already had, but not ones past the limit.
+		 * @return The ranges that this didn't already have.
+		 */
+		public List<ProtectionRange> addAll(List<ProtectionRange> ranges,
+				int limit, List<ProtectionRange> granted) {
+			List<ProtectionRange> added = new ArrayList<>();
+			for (ProtectionRange range : ranges) {
+				if (contains(range)) {
+					Integer extra = extraGrants.get(range);
+					extraGrants.put(range, extra == null ? 1 : extra + 1);
+					granted.add(range);
+				} else if (limit > 0) {
+					insert(range);
+					granted.add(range);
+					added.add(range);
+					limit--;
+				}
+			}
+			return added;
+		}
+
+		/**
+		 * Releases a single grant of each of the given ranges, removing the
+		 * ones that have no grants left.
+		 */
+		public void release(List<ProtectionRange> ranges) {
+			for (ProtectionRange range : ranges) {
+				Integer extra = extraGrants.get(range);
+				if (extra == null) {
+					delete(range);
+				} else if (extra == 1) {
+					extraGrants.remove(range);
+				} else {
+					extraGrants.put(range, extra - 1);
+				}
+			}
+		}
+
+		/**
+		 * Removes the given ranges, no matter how many times they were given.
+		 */
+		public void removeAll(List<ProtectionRange> ranges) {
+			for (ProtectionRange range : ranges) {
+				extraGrants.remove(range);
+				delete(range);
+			}
+		}
+
+		private boolean contains(ProtectionRange range) {
+			if (range.x1 == range.x2 && range.z1 == range.z2) {
+				ChunkSet chunks = chunksByTag.get(range.tag);
+				return chunks != null && chunks.contains(range.x1, range.z1);
+			} else {
+				return largerRanges.contains(range);
+			}
+		}
+
+		private void insert(ProtectionRange range) {
+			if (range.x1 == range.x2 && range.z1 == range.z2) {
+				ChunkSet chunks = chunksByTag.get(range.tag);
+				if (chunks == null) {
+					chunks = new ChunkSet();
+					chunksByTag.put(range.tag, chunks);
+				}
+				chunks.add(range.x1, range.z1);
+			} else {
+				largerRanges.add(range);
+			}
+			size++;
+			list = null;
+		}
+
+		private void delete(ProtectionRange range) {
+			if (range.x1 == range.x2 && range.z1 == range.z2) {
+				ChunkSet chunks = chunksByTag.get(range.tag);
+				if (chunks != null && chunks.remove(range.x1, range.z1)) {
+					size--;
+					list = null;
+					if (chunks.isEmpty()) {
+						chunksByTag.remove(range.tag);
+					}
+				}
+			} else if (largerRanges.remove(range)) {
+				size--;
+				list = null;
+			}
 		}
 		
-		public RemoveExpiredRangesTask(Player player, List<ProtectionRange> ranges) {
-			this.uuid = player.getUniqueId();
-			this.rangesToRemove = ranges;
+		public int size() {
+			return size;
+		}
+
+		public boolean isEmpty() {
+			return size == 0;
 		}
 		
-		@Override
-		public void run() {
-			playerRanges.get(uuid).removeAll(
-					rangesToRemove);
-			Player player = Bukkit.getPlayer(uuid);
-			if (player != null) {
-				rangeGroup.setRanges(player, playerRanges.get(uuid));
+		/**
+		 * Gets the ranges as an immutable list.  The list is kept until the
+		 * ranges change, so updating a player whose ranges haven't changed
+		 * doesn't create it again.
+		 */
+		public List<ProtectionRange> toList() {
+			if (list != null) {
+				return list;
+			}
+			ImmutableList.Builder<ProtectionRange> builder = ImmutableList.builder();
+			builder.addAll(largerRanges);
+			for (Map.Entry<String, ChunkSet> e : chunksByTag.entrySet()) {
+				for (long chunk : e.getValue().toArray()) {
+					int x = ChunkSet.unpackX(chunk);
+					int z = ChunkSet.unpackZ(chunk);
+					builder.add(new ProtectionRange(e.getKey(), x, z, x, z));
+				}
+			}
+			list = builder.build();
+			return list;
+		}
+	}
+	
+	/**
+	 * Schedules the given ranges to be removed from the player.
+	 */
+	private void scheduleExpiry(UUID uuid, long ticks,
+			List<ProtectionRange> ranges) {
+		RangeExpiry expiry = new RangeExpiry(uuid, ranges);
+		expiry.timeout = expiryWheel.schedule(ticks, expiryHandler, expiry);
+		activeExpiries.add(expiry.timeout);
+		getPlayerRanges(uuid).expiries.add(expiry);
+	}
+
+	/**
+	 * Stops the given ranges from expiring later, because they were removed.
+	 * Otherwise an old grant's expiry would remove them if they were given
+	 * again.  Expiries that have no ranges left are cancelled.
+	 */
+	private void removeFromExpiries(PlayerRanges current,
+			List<ProtectionRange> ranges) {
+		if (current.expiries.isEmpty()) {
+			return;
+		}
+		Set<ProtectionRange> removed = new HashSet<>(ranges);
+		Iterator<RangeExpiry> itr = current.expiries.iterator();
+		while (itr.hasNext()) {
+			RangeExpiry expiry = itr.next();
+			expiry.rangesToRemove.removeAll(removed);
+			if (expiry.rangesToRemove.isEmpty()) {
+				expiry.timeout.cancel();
+				activeExpiries.remove(expiry.timeout);
+				itr.remove();
 			}
-			// Remove this task from the list of active tasks
-			activeRemovalTasks.remove(this);
 		}
 	}
+	
+	/**
+	 * Ranges that will be removed from a player after a delay.
+	 */
+	private static class RangeExpiry {
+		public final UUID uuid;
+		public final List<ProtectionRange> rangesToRemove;
+		public TimingWheel.Timeout timeout;
+		
+		public RangeExpiry(UUID uuid, List<ProtectionRange> rangesToRemove) {
+			this.uuid = uuid;
+			this.rangesToRemove = rangesToRemove;
+		}
+	}
+	
+	/**
+	 * Removes expired ranges.  All of a player's ranges that expire in the
+	 * same tick are removed with a single update.  Once the last of an
+	 * offline player's ranges expire, they are forgotten entirely.
+	 */
+	private final TimingWheel.Handler<RangeExpiry> expiryHandler = new TimingWheel.Handler<RangeExpiry>() {
+		@Override
+		public void onExpired(List<RangeExpiry> expired) {
+			Set<UUID> changed = new LinkedHashSet<>();
+			for (RangeExpiry expiry : expired) {
+				activeExpiries.remove(expiry.timeout);
+				PlayerRanges current = playerRanges.get(expiry.uuid);
+				if (current != null) {
+					current.release(expiry.rangesToRemove);
+					current.expiries.remove(expiry);
+					changed.add(expiry.uuid);
+				}
+			}
+			
+			for (UUID uuid : changed) {
+				Player player = Bukkit.getPlayer(uuid);
+				if (player != null) {
+					rangeGroup.setRanges(player, playerRanges.get(uuid).toList());
+					dropIfEmpty(uuid);
+				} else if (playerRanges.get(uuid).expiries.isEmpty()) {
+					playerRanges.remove(uuid);
+				}
+			}
+		}
+	};
 }
@@ -6,12 +6,12 @@ import java.util.UUID;
 
 import org.bukkit.ChatColor;
 import org.bukkit.entity.Player;
-import org.bukkit.scheduler.BukkitTask;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 
 import wdl.range.ProtectionRange;
+import wdl.range.TimingWheel;
 
 /**
  * Represents a single request.
@@ -89,17 +89,31 @@ public class PermissionRequest {
 	 */
 	public long expirationTime;
 	/**
-	 * {@link BukkitTask} used to mark this request as expired.
+	 * {@link TimingWheel.Timeout} used to mark this request as expired.  Only
+	 * used by the {@link RequestManager}; this used to be a public
+	 * <code>BukkitTask</code>, but expiry is now handled by the manager and
+	 * the task is no longer exposed.
 	 */
-	public BukkitTask expireTask;
+	TimingWheel.Timeout expireTask;
 	
 	public PermissionRequest(Player player, String requestReason,
 			Map<String, String> requestedPerms,
 			List<ProtectionRange> rangeRequests) {
+		this(player.getUniqueId(), player.getName(), requestReason,
+				requestedPerms, rangeRequests);
+	}
+	
+	/**
+	 * Creates a request for a player who may not be online, when reading
+	 * the {@link RequestJournal}.
+	 */
+	PermissionRequest(UUID playerId, String playerName, String requestReason,
+			Map<String, String> requestedPerms,
+			List<ProtectionRange> rangeRequests) {
 		this.state = State.WAITING;
 		
-		this.playerId = player.getUniqueId();
-		this.playerName = player.getName();
+		this.playerId = playerId;
+		this.playerName = playerName;
 		this.requestReason = requestReason;
 		this.requestedPerms = ImmutableMap.copyOf(requestedPerms);
 		this.rangeRequests = ImmutableList.copyOf(rangeRequests);
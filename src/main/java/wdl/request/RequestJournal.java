@@ -0,0 +1,370 @@
+package wdl.request;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+import wdl.range.ProtectionRange;
+
+/**
+ * Append-only journal of permission requests, so that they survive restarts.
+ * <br/>
+ * Each line is a JSON object for a single change: either a new request
+ * (<code>"type": "created"</code>, with everything needed to recreate it) or
+ * a request changing state (<code>"type": "state"</code>).  Records are
+ * created on the main thread, but written by a background thread, which
+ * syncs the file to disk once per batch of records rather than once per
+ * record.
+ * <br/>
+ * Once enough records have been written, the journal is replaced with a
+ * snapshot that only contains the requests that are still waiting or
+ * accepted, so that it doesn't keep growing.
+ */
+final class RequestJournal implements Runnable {
+	/**
+	 * The fewest records that are written before a snapshot is made.  A
+	 * snapshot is also only made once there are twice as many records as
+	 * active requests.
+	 */
+	private static final int SNAPSHOT_THRESHOLD = 1000;
+	/**
+	 * How long {@link #close()} waits for the remaining records to be
+	 * written.
+	 */
+	private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+	/**
+	 * Queued to tell the writer thread to stop.
+	 */
+	private static final Object STOP = new Object();
+
+	private final File file;
+	private final Logger logger;
+	/**
+	 * Lines to append (as Strings) and snapshots to replace the file with (as
+	 * {@link Snapshot}s), in order.
+	 */
+	private final BlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+	private final Thread thread;
+	/**
+	 * The number of records appended since the last snapshot.  Only used on
+	 * the main thread.
+	 */
+	private int recordsSinceSnapshot = 0;
+
+	/**
+	 * The lines of a snapshot.
+	 */
+	private static final class Snapshot {
+		public final List<String> lines;
+
+		public Snapshot(List<String> lines) {
+			this.lines = lines;
+		}
+	}
+
+	/**
+	 * Creates a new journal using the given file.  Nothing is written until
+	 * {@link #start(Collection)} is called.
+	 */
+	public RequestJournal(File file, Logger logger) {
+		this.file = file;
+		this.logger = logger;
+		this.thread = new Thread(this, "WDL request journal");
+		this.thread.setDaemon(true);
+	}
+
+	/**
+	 * Reads the requests in the journal.  Requests are given in the state
+	 * from their last record, with {@link PermissionRequest#expirationTime}
+	 * set for accepted requests.  Records that can't be read (for instance,
+	 * the last line if the server crashed while it was being written) are
+	 * skipped.
+	 *
+	 * @return The requests, by player ID, in the order they were created.
+	 */
+	public Map<UUID, PermissionRequest> read() {
+		Map<UUID, PermissionRequest> requests = new LinkedHashMap<>();
+		if (!file.exists()) {
+			return requests;
+		}
+
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), StandardCharsets.UTF_8))) {
+			JsonParser parser = new JsonParser();
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				if (line.isEmpty()) {
+					continue;
+				}
+				try {
+					readRecord(parser.parse(line).getAsJsonObject(), requests);
+				} catch (JsonParseException | IllegalStateException
+						| IllegalArgumentException | NullPointerException e) {
+					logger.warning("Skipping unreadable record on line "
+							+ lineNumber + " of " + file + ": " + e);
+				}
+			}
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Failed to read the request journal "
+					+ file + "; some requests may have been lost", e);
+		}
+		return requests;
+	}
+
+	private void readRecord(JsonObject record,
+			Map<UUID, PermissionRequest> requests) {
+		String type = record.get("type").getAsString();
+		UUID id = UUID.fromString(record.get("id").getAsString());
+		if (type.equals("created")) {
+			Map<String, String> perms = new LinkedHashMap<>();
+			for (Map.Entry<String, JsonElement> e : record
+					.getAsJsonObject("perms").entrySet()) {
+				perms.put(e.getKey(), e.getValue().getAsString());
+			}
+			List<ProtectionRange> ranges = new ArrayList<>();
+			for (JsonElement element : record.getAsJsonArray("ranges")) {
+				JsonArray range = element.getAsJsonArray();
+				ranges.add(new ProtectionRange(range.get(0).getAsString(),
+						range.get(1).getAsInt(), range.get(2).getAsInt(),
+						range.get(3).getAsInt(), range.get(4).getAsInt()));
+			}
+			// Replaces any older request, like RequestManager.addRequest
+			requests.remove(id);
+			requests.put(id, new PermissionRequest(id, record.get("name")
+					.getAsString(), record.get("reason").getAsString(), perms,
+					ranges));
+		} else if (type.equals("state")) {
+			PermissionRequest request = requests.get(id);
+			if (request == null) {
+				throw new IllegalArgumentException("State change for unknown "
+						+ "request " + id);
+			}
+			request.state = PermissionRequest.State.valueOf(record.get(
+					"state").getAsString());
+			if (record.has("expires")) {
+				request.expirationTime = record.get("expires").getAsLong();
+			}
+		} else {
+			throw new IllegalArgumentException("Unknown record type " + type);
+		}
+	}
+
+	/**
+	 * Starts writing records, replacing the journal with a snapshot of the
+	 * given requests first.
+	 */
+	public void start(Collection<PermissionRequest> requests) {
+		queue.add(createSnapshot(requests));
+		thread.start();
+	}
+
+	/**
+	 * Records that the given request was created.
+	 */
+	public void recordCreated(PermissionRequest request,
+			Collection<PermissionRequest> activeRequests) {
+		append(createdRecord(request), activeRequests);
+	}
+
+	/**
+	 * Records that the given request changed state.
+	 */
+	public void recordState(PermissionRequest request,
+			Collection<PermissionRequest> activeRequests) {
+		append(stateRecord(request), activeRequests);
+	}
+
+	/**
+	 * Stops the writer thread, after it writes the records that are still
+	 * queued.
+	 */
+	public void close() {
+		queue.add(STOP);
+		try {
+			thread.join(CLOSE_TIMEOUT_MILLIS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (thread.isAlive()) {
+			logger.warning("Timed out waiting for the request journal to be "
+					+ "written; some changes to requests may be lost");
+		}
+	}
+
+	/**
+	 * Queues a record, or a snapshot if enough records have been written.
+	 */
+	private void append(String line,
+			Collection<PermissionRequest> activeRequests) {
+		recordsSinceSnapshot++;
+		if (recordsSinceSnapshot >= SNAPSHOT_THRESHOLD
+				&& recordsSinceSnapshot >= 2 * activeRequests.size()) {
+			queue.add(createSnapshot(activeRequests));
+		} else {
+			queue.add(line);
+		}
+	}
+
+	/**
+	 * Creates a snapshot of the requests that are waiting or accepted.
+	 */
+	private Snapshot createSnapshot(Collection<PermissionRequest> requests) {
+		List<String> lines = new ArrayList<>();
+		for (PermissionRequest request : requests) {
+			if (request.state == PermissionRequest.State.WAITING
+					|| request.state == PermissionRequest.State.ACCEPTED) {
+				lines.add(createdRecord(request));
+				if (request.state != PermissionRequest.State.WAITING) {
+					lines.add(stateRecord(request));
+				}
+			}
+		}
+		recordsSinceSnapshot = 0;
+		return new Snapshot(lines);
+	}
+
+	private static String createdRecord(PermissionRequest request) {
+		JsonObject record = new JsonObject();
+		record.addProperty("type", "created");
+		record.addProperty("id", request.playerId.toString());
+		record.addProperty("name", request.playerName);
+		record.addProperty("reason", request.requestReason);
+		JsonObject perms = new JsonObject();
+		for (Map.Entry<String, String> e : request.requestedPerms.entrySet()) {
+			perms.addProperty(e.getKey(), e.getValue());
+		}
+		record.add("perms", perms);
+		JsonArray ranges = new JsonArray();
+		for (ProtectionRange range : request.rangeRequests) {
+			JsonArray array = new JsonArray();
+			array.add(new JsonPrimitive(range.tag));
+			array.add(new JsonPrimitive(range.x1));
+			array.add(new JsonPrimitive(range.z1));
+			array.add(new JsonPrimitive(range.x2));
+			array.add(new JsonPrimitive(range.z2));
+			ranges.add(array);
+		}
+		record.add("ranges", ranges);
+		return record.toString();
+	}
+
+	private static String stateRecord(PermissionRequest request) {
+		JsonObject record = new JsonObject();
+		record.addProperty("type", "state");
+		record.addProperty("id", request.playerId.toString());
+		record.addProperty("state", request.state.name());
+		if (request.state == PermissionRequest.State.ACCEPTED) {
+			record.addProperty("expires", request.expirationTime);
+		}
+		return record.toString();
+	}
+
+	@Override
+	public void run() {
+		FileOutputStream out = null;
+		Writer writer = null;
+		List<Object> batch = new ArrayList<>();
+		boolean stopping = false;
+		while (!stopping) {
+			try {
+				batch.add(queue.take());
+			} catch (InterruptedException e) {
+				break;
+			}
+			queue.drainTo(batch);
+
+			try {
+				for (Object entry : batch) {
+					if (entry == STOP) {
+						stopping = true;
+					} else if (entry instanceof Snapshot) {
+						if (writer != null) {
+							writer.close();
+							writer = null;
+						}
+						writeSnapshot(((Snapshot) entry).lines);
+					} else {
+						if (writer == null) {
+							out = new FileOutputStream(file, true);
+							writer = new OutputStreamWriter(out,
+									StandardCharsets.UTF_8);
+						}
+						writer.write((String) entry);
+						writer.write('\n');
+					}
+				}
+				if (writer != null) {
+					writer.flush();
+					out.getChannel().force(false);
+				}
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Failed to write to the request "
+						+ "journal " + file + "; some changes to requests may "
+						+ "be lost after a restart", e);
+				closeQuietly(writer);
+				writer = null;
+			}
+			batch.clear();
+		}
+		closeQuietly(writer);
+	}
+
+	/**
+	 * Replaces the journal with the given lines.  They are written to a
+	 * temporary file first, so that the journal isn't lost if the server
+	 * crashes part of the way through.
+	 */
+	private void writeSnapshot(List<String> lines) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		file.getAbsoluteFile().getParentFile().mkdirs();
+		try (FileOutputStream out = new FileOutputStream(temp)) {
+			Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+			for (String line : lines) {
+				writer.write(line);
+				writer.write('\n');
+			}
+			writer.flush();
+			out.getChannel().force(false);
+		}
+		Files.move(temp.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private void closeQuietly(Writer writer) {
+		if (writer != null) {
+			try {
+				writer.close();
+			} catch (IOException e) {
+				logger.log(Level.FINE, "Failed to close request journal", e);
+			}
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package wdl.request;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -8,10 +9,10 @@ import java.util.UUID;
 
 import org.bukkit.Bukkit;
 import org.bukkit.entity.Player;
-import org.bukkit.scheduler.BukkitRunnable;
 
 import wdl.WDLCompanion;
 import wdl.range.ProtectionRange;
+import wdl.range.TimingWheel;
 
 /**
  * Keeps track of requests.
@@ -36,6 +37,83 @@ public class RequestManager {
 	 * Active requests, by player ID.
 	 */
 	private Map<UUID, PermissionRequest> requestsById = new HashMap<>();
+	/**
+	 * Journal that changes to requests are written to, or null if it hasn't
+	 * been loaded yet.
+	 */
+	private RequestJournal journal;
+	
+	/**
+	 * Restores the requests that were waiting or accepted from the given
+	 * journal file, and then starts recording changes to it.  Accepted
+	 * requests only last for the rest of their original duration, and the
+	 * ranges for them are given to {@link WDLCompanion#requestRangeProducer}
+	 * (so this must be called after it is created, but before players are
+	 * sent their ranges).
+	 * 
+	 * @param file The journal file.
+	 */
+	public void loadJournal(File file) {
+		if (journal != null) {
+			throw new IllegalStateException("Journal has already been loaded!");
+		}
+		journal = new RequestJournal(file, plugin.getLogger());
+		
+		long now = System.currentTimeMillis();
+		int restored = 0;
+		for (PermissionRequest request : journal.read().values()) {
+			if (request.state == PermissionRequest.State.ACCEPTED) {
+				// Round up to the next tick
+				long remainingTicks = (request.expirationTime - now + 49) / 50;
+				if (remainingTicks <= 0) {
+					continue;
+				}
+				request.expireTask = plugin.expiryWheel.schedule(
+						remainingTicks, expiryHandler, request);
+				if (request.rangeRequests.size() > 0) {
+					plugin.requestRangeProducer.restoreRanges(request.playerId,
+							remainingTicks, request.rangeRequests);
+				}
+				plugin.invalidatePermissionCache(request.playerId);
+			} else if (request.state != PermissionRequest.State.WAITING) {
+				continue;
+			}
+			requestsByName.put(request.playerName.toLowerCase(), request);
+			requestsById.put(request.playerId, request);
+			restored++;
+		}
+		if (restored > 0) {
+			plugin.getLogger().info("Restored " + restored
+					+ " permission request(s) from " + file.getName() + ".");
+		}
+		
+		journal.start(requestsById.values());
+	}
+	
+	/**
+	 * Writes any remaining changes to the journal and closes it.
+	 */
+	public void closeJournal() {
+		if (journal != null) {
+			journal.close();
+			journal = null;
+		}
+	}
+	
+	/**
+	 * Records the creation or state change of the given request in the
+	 * journal.
+	 */
+	private void record(PermissionRequest request, boolean created) {
+		if (journal == null) {
+			return;
+		}
+		if (created) {
+			journal.recordCreated(request, requestsById.values());
+		} else {
+			journal.recordState(request, requestsById.values());
+		}
+	}
 	
 	public void addRequest(PermissionRequest request, WDLCompanion plugin) {
 		if (requestsById.containsKey(request.playerId)) {
@@ -59,6 +137,7 @@ public class RequestManager {
 						|| oldRequest.state == PermissionRequest.State.ACCEPTED) {
 					player.sendMessage("[WDL] You withdrew your old permission request.");
 					oldRequest.state = PermissionRequest.State.WITHDRAWN;
+					plugin.invalidatePermissionCache(oldRequest.playerId);
 					plugin.getServer().getPluginManager().callEvent(new RequestWithdrawnEvent());
 				}
 				
@@ -75,6 +154,7 @@ public class RequestManager {
 		
 		requestsByName.put(request.playerName.toLowerCase(), request);
 		requestsById.put(request.playerId, request);
+		record(request, true);
 		
 		plugin.getLogger().info(
 				request.playerName + " submitted a new permission request.");
@@ -142,12 +222,14 @@ public class RequestManager {
 		request.expirationTime = System.currentTimeMillis()
 				+ (durationSeconds * 1000);
 		
-		RequestCleanupTask task = new RequestCleanupTask(request);
-		request.expireTask = task.runTaskLater(plugin, durationSeconds * 20);
+		request.expireTask = plugin.expiryWheel.schedule(durationSeconds * 20,
+				expiryHandler, request);
 		
 		Player player = Bukkit.getPlayer(request.playerId);
 
 		request.state = PermissionRequest.State.ACCEPTED;
+		plugin.invalidatePermissionCache(request.playerId);
+		record(request, false);
 
 		if (request.requestedPerms.size() > 0) {
 			plugin.updatePlayer(player);
@@ -168,6 +250,8 @@ public class RequestManager {
 		}
 		
 		request.state = PermissionRequest.State.REJECTED;
+		plugin.invalidatePermissionCache(request.playerId);
+		record(request, false);
 		
 		Player player = Bukkit.getPlayer(request.playerId);
 		if (player != null) {
@@ -183,6 +267,8 @@ public class RequestManager {
 		}
 		
 		request.state = PermissionRequest.State.REVOKED;
+		plugin.invalidatePermissionCache(request.playerId);
+		record(request, false);
 		
 		if (request.expireTask != null) {
 			request.expireTask.cancel();
@@ -198,25 +284,26 @@ public class RequestManager {
 		plugin.getServer().getPluginManager().callEvent(new RequestRevokedEvent());
 	}
 	
-	private class RequestCleanupTask extends BukkitRunnable {
-		public RequestCleanupTask(PermissionRequest request) {
-			this.request = request;
-		}
-		
-		public final PermissionRequest request;
-		
+	/**
+	 * Marks accepted requests as expired once their time is up.
+	 */
+	private final TimingWheel.Handler<PermissionRequest> expiryHandler = new TimingWheel.Handler<PermissionRequest>() {
 		@Override
-		public void run() {
-			// Request has expired at this point.
-			request.state = PermissionRequest.State.EXPIRED;
-			Player player = Bukkit.getPlayer(request.playerId);
-			if (player != null) {
-				plugin.updatePlayer(player);
-				plugin.getServer().getPluginManager().callEvent(new RequestExpiredEvent());
-				player.sendMessage("[WDL] Your requested permissions have expired.");
+		public void onExpired(List<PermissionRequest> requests) {
+			for (PermissionRequest request : requests) {
+				// Request has expired at this point.
+				request.state = PermissionRequest.State.EXPIRED;
+				plugin.invalidatePermissionCache(request.playerId);
+				record(request, false);
+				Player player = Bukkit.getPlayer(request.playerId);
+				if (player != null) {
+					plugin.updatePlayer(player);
+					plugin.getServer().getPluginManager().callEvent(new RequestExpiredEvent());
+					player.sendMessage("[WDL] Your requested permissions have expired.");
+				}
+				
+				plugin.getLogger().info(request + " has expired.");
 			}
-			
-			plugin.getLogger().info(request + " has expired.");
 		}
-	}
+	};
 }